@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits download bandwidth across global, per-UID and per-package budgets.
+ * Each budget is a token bucket implemented with the generic cell rate
+ * algorithm (GCRA), which only needs a single atomic timestamp per bucket,
+ * so transfer threads never take a lock to account for a chunk.
+ * <p>
+ * Limits are read from global settings and can change at runtime.
+ */
+public class BandwidthLimiter {
+
+    /** Global limit for all downloads, in bytes per second. */
+    public static final String SETTING_GLOBAL_LIMIT = "download_manager_max_bytes_per_second";
+    /** Limit applied to each requesting UID, in bytes per second. */
+    public static final String SETTING_UID_LIMIT = "download_manager_uid_max_bytes_per_second";
+    /** Limit applied to each requesting package, in bytes per second. */
+    public static final String SETTING_PACKAGE_LIMIT =
+            "download_manager_package_max_bytes_per_second";
+
+    /** How far ahead of schedule a bucket may burst. */
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    /** How often buckets of UIDs and packages that went idle are dropped. */
+    private static final long PRUNE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Bucket mGlobal = new Bucket();
+    private final ConcurrentHashMap<Integer, Bucket> mUids =
+            new ConcurrentHashMap<Integer, Bucket>();
+    private final ConcurrentHashMap<String, Bucket> mPackages =
+            new ConcurrentHashMap<String, Bucket>();
+
+    private volatile long mUidLimit;
+    private volatile long mPackageLimit;
+
+    private final AtomicLong mLastPrune = new AtomicLong(System.nanoTime());
+
+    /**
+     * Single token bucket, tracking its theoretical arrival time: the
+     * moment when all bytes reserved so far would have been sent at exactly
+     * the allowed rate.
+     */
+    private static class Bucket {
+        private final AtomicLong mArrival = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+
+        private volatile long mLimit;
+
+        private long mSampleBytes;
+        private long mSampleTime = System.nanoTime();
+
+        /**
+         * Return how long until this bucket conforms again, in nanoseconds,
+         * without reserving anything.
+         */
+        public long getDelay(long now) {
+            if (mLimit <= 0) return 0;
+            return Math.max(0, mArrival.get() - BURST_NANOS - now);
+        }
+
+        /**
+         * Charge the given bytes against this bucket.
+         */
+        public void charge(long bytes, long now) {
+            mBytes.addAndGet(bytes);
+
+            final long limit = mLimit;
+            if (limit <= 0) return;
+
+            final long cost = bytes * TimeUnit.SECONDS.toNanos(1) / limit;
+            for (;;) {
+                final long arrival = mArrival.get();
+                final long start = Math.max(arrival, now);
+                if (mArrival.compareAndSet(arrival, start + cost)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Return if nothing is owed, so the bucket can be dropped without
+         * losing any budget.
+         */
+        public boolean isIdle(long now) {
+            return mArrival.get() <= now;
+        }
+
+        /**
+         * Return actual rate since the previous sample, in bytes per second.
+         */
+        public synchronized long sampleRate(long now) {
+            final long bytes = mBytes.get();
+            final long elapsed = now - mSampleTime;
+            final long rate = elapsed > 0
+                    ? (bytes - mSampleBytes) * TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+            mSampleBytes = bytes;
+            mSampleTime = now;
+            return rate;
+        }
+    }
+
+    /**
+     * Account for bytes transferred on behalf of the given UID and package
+     * once every budget allows it. When any budget is behind schedule,
+     * nothing is charged and the caller should wait the returned time before
+     * trying again, so that waiting on one budget never holds capacity in
+     * the others.
+     *
+     * @return 0 when the bytes were accounted for, otherwise how long to
+     *         wait before calling again, in milliseconds.
+     */
+    public long reserve(int uid, String packageName, long bytes) {
+        final long now = System.nanoTime();
+        pruneIfNeeded(now);
+
+        final Bucket uidBucket = getBucket(mUids, uid, mUidLimit);
+        final Bucket packageBucket = (packageName != null)
+                ? getBucket(mPackages, packageName, mPackageLimit) : null;
+
+        long delay = Math.max(mGlobal.getDelay(now), uidBucket.getDelay(now));
+        if (packageBucket != null) {
+            delay = Math.max(delay, packageBucket.getDelay(now));
+        }
+        if (delay > 0) {
+            // round up, so callers never spin on a zero wait
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay));
+        }
+
+        mGlobal.charge(bytes, now);
+        uidBucket.charge(bytes, now);
+        if (packageBucket != null) {
+            packageBucket.charge(bytes, now);
+        }
+        return 0;
+    }
+
+    /**
+     * Drop buckets of UIDs and packages that owe nothing, so they don't
+     * accumulate for every app that ever downloaded.
+     */
+    private void pruneIfNeeded(long now) {
+        final long last = mLastPrune.get();
+        if (now - last < PRUNE_INTERVAL_NANOS || !mLastPrune.compareAndSet(last, now)) {
+            return;
+        }
+        pruneIdle(mUids, now);
+        pruneIdle(mPackages, now);
+    }
+
+    private static <K> void pruneIdle(ConcurrentHashMap<K, Bucket> buckets, long now) {
+        for (Map.Entry<K, Bucket> entry : buckets.entrySet()) {
+            if (entry.getValue().isIdle(now)) {
+                buckets.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static <K> Bucket getBucket(ConcurrentHashMap<K, Bucket> buckets, K key, long limit) {
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            final Bucket created = new Bucket();
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        bucket.mLimit = limit;
+        return bucket;
+    }
+
+    /**
+     * Load current limits from settings; zero means unlimited.
+     */
+    public void updateLimits(SystemFacade systemFacade) {
+        mGlobal.mLimit = systemFacade.getBandwidthLimit(SETTING_GLOBAL_LIMIT);
+        mUidLimit = systemFacade.getBandwidthLimit(SETTING_UID_LIMIT);
+        mPackageLimit = systemFacade.getBandwidthLimit(SETTING_PACKAGE_LIMIT);
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        final long now = System.nanoTime();
+        pw.println("BandwidthLimiter: (actual rates since last dump)");
+        pw.increaseIndent();
+        dumpBucket(pw, "global", mGlobal, now);
+        for (Map.Entry<Integer, Bucket> entry : mUids.entrySet()) {
+            dumpBucket(pw, "uid " + entry.getKey(), entry.getValue(), now);
+        }
+        for (Map.Entry<String, Bucket> entry : mPackages.entrySet()) {
+            dumpBucket(pw, "package " + entry.getKey(), entry.getValue(), now);
+        }
+        pw.decreaseIndent();
+    }
+
+    private static void dumpBucket(IndentingPrintWriter pw, String name, Bucket bucket, long now) {
+        pw.print(name);
+        pw.print(": ");
+        pw.printPair("actual", bucket.sampleRate(now));
+        pw.printPair("allowed", bucket.mLimit > 0 ? String.valueOf(bucket.mLimit) : "unlimited");
+        pw.println();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SHA-256 digest whose intermediate state can be saved alongside download
+ * progress and restored later, so a resumed download continues hashing where
+ * it stopped instead of reading the existing prefix back from disk.
+ * {@link java.security.MessageDigest} can't export its state, so the
+ * compression function is implemented here directly.
+ * <p>
+ * Saved state has the form {@code length:hash:pending}, where {@code hash}
+ * is the eight intermediate words and {@code pending} any bytes not yet
+ * filling a block, both in hex.
+ */
+public class CheckpointedDigest {
+
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4,
+        0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe,
+        0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f,
+        0x4a7484aa, 0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+        0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc,
+        0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+        0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070, 0x19a4c116,
+        0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7,
+        0xc67178f2,
+    };
+
+    private static final int[] INITIAL_HASH = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab,
+        0x5be0cd19,
+    };
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final int[] mHash = new int[8];
+    private final byte[] mPending = new byte[BLOCK_SIZE];
+    private final int[] mSchedule = new int[64];
+
+    private int mPendingLength;
+    private long mLength;
+
+    public CheckpointedDigest() {
+        System.arraycopy(INITIAL_HASH, 0, mHash, 0, mHash.length);
+    }
+
+    /**
+     * Returns the number of bytes hashed so far.
+     */
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Hash all remaining data in the given buffer, leaving its position
+     * unchanged.
+     */
+    public synchronized void update(ByteBuffer data) {
+        final ByteBuffer view = data.duplicate();
+        while (view.hasRemaining()) {
+            final int count = Math.min(view.remaining(), BLOCK_SIZE - mPendingLength);
+            view.get(mPending, mPendingLength, count);
+            advance(count);
+        }
+    }
+
+    public synchronized void update(byte[] data, int offset, int count) {
+        while (count > 0) {
+            final int chunk = Math.min(count, BLOCK_SIZE - mPendingLength);
+            System.arraycopy(data, offset, mPending, mPendingLength, chunk);
+            advance(chunk);
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    private void advance(int count) {
+        mPendingLength += count;
+        mLength += count;
+        if (mPendingLength == BLOCK_SIZE) {
+            compress(mPending);
+            mPendingLength = 0;
+        }
+    }
+
+    /**
+     * Returns the final digest of everything hashed so far as lowercase hex,
+     * without disturbing the running state.
+     */
+    public synchronized String finish() {
+        final CheckpointedDigest copy = copy();
+        final long bitLength = mLength * 8;
+
+        final byte[] padding = new byte[BLOCK_SIZE * 2];
+        padding[0] = (byte) 0x80;
+        int paddingLength = BLOCK_SIZE - 8 - mPendingLength;
+        if (paddingLength <= 0) {
+            paddingLength += BLOCK_SIZE;
+        }
+        for (int i = 0; i < 8; i++) {
+            padding[paddingLength + i] = (byte) (bitLength >>> (56 - i * 8));
+        }
+        copy.update(padding, 0, paddingLength + 8);
+
+        final byte[] result = new byte[32];
+        for (int i = 0; i < 8; i++) {
+            writeInt(result, i * 4, copy.mHash[i]);
+        }
+        return toHex(result, 0, result.length);
+    }
+
+    /**
+     * Returns the intermediate state, suitable for {@link #restore(String)}.
+     */
+    public synchronized String save() {
+        final byte[] hash = new byte[32];
+        for (int i = 0; i < 8; i++) {
+            writeInt(hash, i * 4, mHash[i]);
+        }
+        return mLength + ":" + toHex(hash, 0, hash.length) + ":"
+                + toHex(mPending, 0, mPendingLength);
+    }
+
+    /**
+     * Restore state previously returned by {@link #save()}.
+     *
+     * @return restored digest, or {@code null} when the state is malformed.
+     */
+    public static CheckpointedDigest restore(String saved) {
+        if (saved == null) return null;
+        final String[] parts = saved.split(":", -1);
+        if (parts.length != 3) return null;
+
+        try {
+            final CheckpointedDigest digest = new CheckpointedDigest();
+            digest.mLength = Long.parseLong(parts[0]);
+
+            final byte[] hash = fromHex(parts[1]);
+            final byte[] pending = fromHex(parts[2]);
+            if (hash == null || hash.length != 32 || pending == null
+                    || pending.length >= BLOCK_SIZE
+                    || digest.mLength < 0 || digest.mLength % BLOCK_SIZE != pending.length) {
+                return null;
+            }
+
+            for (int i = 0; i < 8; i++) {
+                digest.mHash[i] = ((hash[i * 4] & 0xff) << 24) | ((hash[i * 4 + 1] & 0xff) << 16)
+                        | ((hash[i * 4 + 2] & 0xff) << 8) | (hash[i * 4 + 3] & 0xff);
+            }
+            System.arraycopy(pending, 0, digest.mPending, 0, pending.length);
+            digest.mPendingLength = pending.length;
+            return digest;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private CheckpointedDigest copy() {
+        final CheckpointedDigest copy = new CheckpointedDigest();
+        System.arraycopy(mHash, 0, copy.mHash, 0, mHash.length);
+        System.arraycopy(mPending, 0, copy.mPending, 0, mPendingLength);
+        copy.mPendingLength = mPendingLength;
+        copy.mLength = mLength;
+        return copy;
+    }
+
+    private void compress(byte[] block) {
+        final int[] w = mSchedule;
+        for (int i = 0; i < 16; i++) {
+            w[i] = ((block[i * 4] & 0xff) << 24) | ((block[i * 4 + 1] & 0xff) << 16)
+                    | ((block[i * 4 + 2] & 0xff) << 8) | (block[i * 4 + 3] & 0xff);
+        }
+        for (int i = 16; i < 64; i++) {
+            final int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18)
+                    ^ (w[i - 15] >>> 3);
+            final int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19)
+                    ^ (w[i - 2] >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+
+        int a = mHash[0], b = mHash[1], c = mHash[2], d = mHash[3];
+        int e = mHash[4], f = mHash[5], g = mHash[6], h = mHash[7];
+        for (int i = 0; i < 64; i++) {
+            final int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11)
+                    ^ Integer.rotateRight(e, 25);
+            final int ch = (e & f) ^ (~e & g);
+            final int t1 = h + s1 + ch + K[i] + w[i];
+            final int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13)
+                    ^ Integer.rotateRight(a, 22);
+            final int maj = (a & b) ^ (a & c) ^ (b & c);
+            final int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        mHash[0] += a;
+        mHash[1] += b;
+        mHash[2] += c;
+        mHash[3] += d;
+        mHash[4] += e;
+        mHash[5] += f;
+        mHash[6] += g;
+        mHash[7] += h;
+    }
+
+    private static void writeInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    private static String toHex(byte[] data, int offset, int count) {
+        final char[] out = new char[count * 2];
+        for (int i = 0; i < count; i++) {
+            out[i * 2] = HEX_DIGITS[(data[offset + i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX_DIGITS[data[offset + i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) return null;
+        final byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            final int high = Character.digit(hex.charAt(i * 2), 16);
+            final int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) return null;
+            out[i] = (byte) ((high << 4) | low);
+        }
+        return out;
+    }
+}
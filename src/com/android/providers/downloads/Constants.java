@@ -16,8 +16,10 @@
 
 package com.android.providers.downloads;
 
+import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.provider.Downloads;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -48,6 +50,40 @@ public class Constants {
     /** The column that is used to remember whether the media scanner was invoked */
     public static final String MEDIA_SCANNED = "scanned";
 
+    /** The column that is used to persist progress of each segment of a segmented download */
+    public static final String SEGMENTS = "segments";
+
+    /** The column that is used for the Content-Encoding of data stored while downloading */
+    public static final String CONTENT_ENCODING = "content_encoding";
+
+    /**
+     * The column that is used for the app-requested scheduling priority; positive
+     * raises a download to foreground, negative lowers it to background
+     */
+    public static final String PRIORITY = "priority";
+
+    /**
+     * The column that is stamped with an increasing sequence whenever a row
+     * is inserted or updated, so changed rows can be found without a scan
+     */
+    public static final String CHANGE_SEQ = "change_seq";
+
+    /** The column that is used for the app-supplied SHA-256 of the expected content, in hex */
+    public static final String EXPECTED_HASH = "expected_hash";
+
+    /** The column that is used to checkpoint the running digest alongside current bytes */
+    public static final String DIGEST_STATE = "digest_state";
+
+    /**
+     * This download completed, but its content didn't match the digest it
+     * was requested with. Every artificial error code of
+     * {@link android.provider.Downloads.Impl} is already taken, so this
+     * reports as a file error, which DownloadManager surfaces as
+     * {@link android.app.DownloadManager#ERROR_FILE_ERROR}. The error message
+     * column tells the two apart.
+     */
+    public static final int STATUS_HASH_MISMATCH = Downloads.Impl.STATUS_FILE_ERROR;
+
     /** The intent that gets sent when the service must wake up for a retry */
     public static final String ACTION_RETRY = "android.intent.action.DOWNLOAD_WAKEUP";
 
@@ -122,8 +158,17 @@ public class Constants {
     /** The MIME type of APKs */
     public static final String MIMETYPE_APK = "application/vnd.android.package";
 
-    /** The buffer size used to stream the data */
-    public static final int BUFFER_SIZE = 4096;
+    /** The smallest chunk read at once, used on slow links to keep pause responsive */
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    /** The largest chunk read at once, used on fast links to amortize syscalls */
+    public static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+    /** The buffer used for passes over local files, such as decoding and hashing */
+    public static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    /** The number of buffers queued between reading and writing a download */
+    public static final int TRANSFER_RING_SIZE = 4;
 
     /** The minimum amount of progress that has to be done before the progress bar gets updated */
     public static final int MIN_PROGRESS_STEP = 4096;
@@ -131,6 +176,67 @@ public class Constants {
     /** The minimum amount of time that has to elapse before the progress bar gets updated, in ms */
     public static final long MIN_PROGRESS_TIME = 1500;
 
+    /** How often progress posted by running downloads is written to the database, in ms */
+    public static final long PROGRESS_FLUSH_INTERVAL = MIN_PROGRESS_TIME;
+
+    /**
+     * The URI notified by the provider for changes that can affect scheduling,
+     * with the kind of change appended; progress-only changes aren't notified
+     */
+    public static final Uri SCHEDULING_CONTENT_URI = Uri.parse("content://downloads/scheduling");
+
+    /**
+     * Internal URI of downloads stamped with a {@link #CHANGE_SEQ} newer than
+     * the one appended; only queryable from within this process
+     */
+    public static final Uri CHANGED_DOWNLOADS_CONTENT_URI =
+            Uri.parse("content://downloads/changed_downloads");
+
+    /** The provider method that writes progress of several downloads in one transaction */
+    public static final String METHOD_UPDATE_PROGRESS = "update_progress";
+
+    /** The extra holding download IDs for {@link #METHOD_UPDATE_PROGRESS} */
+    public static final String EXTRA_IDS = "ids";
+
+    /** The extra holding values for each download for {@link #METHOD_UPDATE_PROGRESS} */
+    public static final String EXTRA_VALUES = "values";
+
+    /** The provider method that returns the latest change sequence and delete count */
+    public static final String METHOD_GET_CHANGES = "get_changes";
+
+    /** The extra holding the latest {@link #CHANGE_SEQ} handed out */
+    public static final String EXTRA_CHANGE_SEQ = "change_seq";
+
+    /** The extra holding the number of deletes since the provider started */
+    public static final String EXTRA_DELETE_COUNT = "delete_count";
+
+    /** How often the service reconciles against every row, instead of only changed ones */
+    public static final long FULL_UPDATE_INTERVAL = 5 * 60 * 1000;
+
+    /** The minimum length of a download before it's split into parallel segments */
+    public static final long MIN_SEGMENTED_LENGTH = 16 * 1024 * 1024;
+
+    /** The maximum number of parallel connections used for a single segmented download */
+    public static final int MAX_SEGMENTS = 4;
+
+    /** The maximum number of idle keep-alive connections the platform pool keeps per host */
+    public static final int MAX_IDLE_CONNECTIONS_PER_HOST = 4;
+
+    /** How long a queued download waits before it outranks the next higher priority class */
+    public static final long SCHEDULER_AGING_STEP = 5 * 60 * 1000;
+
+    /** How far each queued download pushes back later work from the same host or UID */
+    public static final long SCHEDULER_FAIR_QUANTUM = 1000;
+
+    /** The maximum number of downloads dispatched to a single host at once */
+    public static final int MAX_DOWNLOADS_PER_HOST = 2;
+
+    /** The maximum size of all downloads kept for conditional revalidation */
+    public static final long MAX_CACHE_BYTES = 16 * 1024 * 1024;
+
+    /** The maximum size of a single download kept for conditional revalidation */
+    public static final long MAX_CACHE_ENTRY_BYTES = 2 * 1024 * 1024;
+
     /** The maximum number of rows in the database (FIFO) */
     public static final int MAX_DOWNLOADS = 1000;
 
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.TAG;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import libcore.io.ErrnoException;
+
+/**
+ * Copies of recently completed downloads, kept so that downloading the same
+ * URL again can be revalidated with a conditional request. When the server
+ * answers {@link java.net.HttpURLConnection#HTTP_NOT_MODIFIED}, the cached
+ * copy is materialized into the new destination without transferring the
+ * body again.
+ * <p>
+ * Entries are private to the UID that downloaded them, so a conditional
+ * request from one app is never answered with a copy fetched by another.
+ * Each entry lives only as long as the download it was copied from.
+ * <p>
+ * Only responses up to a fixed size are kept, and the cache as a whole is
+ * trimmed in least recently used order to stay under its budget. It is also
+ * emptied by {@link StorageManager} before user downloads are purged when
+ * storage runs low.
+ */
+public class DownloadCache {
+
+    private static final String DB_NAME = "download_cache.db";
+    private static final int DB_VERSION = 2;
+    private static final String DB_TABLE = "entries";
+
+    private static final String COLUMN_UID = "uid";
+    private static final String COLUMN_URL = "url";
+    private static final String COLUMN_ETAG = "etag";
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+    private static final String COLUMN_MIME_TYPE = "mime_type";
+    private static final String COLUMN_CONTENT_DISPOSITION = "content_disposition";
+    private static final String COLUMN_LENGTH = "length";
+    private static final String COLUMN_FILENAME = "filename";
+    private static final String COLUMN_LAST_ACCESS = "last_access";
+    private static final String COLUMN_DOWNLOAD_ID = "download_id";
+
+    private static final String WHERE_UID_URL = COLUMN_UID + "=? AND " + COLUMN_URL + "=?";
+
+    /**
+     * Cached response for a single URL, as downloaded by a single UID.
+     */
+    public static class Entry {
+        public final int mUid;
+        public final String mUrl;
+        public final String mETag;
+        public final String mLastModified;
+        public final String mMimeType;
+        public final String mContentDisposition;
+        public final long mLength;
+        public final File mFile;
+        public final long mDownloadId;
+
+        private Entry(Cursor cursor) {
+            mUid = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_UID));
+            mUrl = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_URL));
+            mETag = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_ETAG));
+            mLastModified = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_LAST_MODIFIED));
+            mMimeType = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MIME_TYPE));
+            mContentDisposition = cursor.getString(
+                    cursor.getColumnIndexOrThrow(COLUMN_CONTENT_DISPOSITION));
+            mLength = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_LENGTH));
+            mFile = new File(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FILENAME)));
+            mDownloadId = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_DOWNLOAD_ID));
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        public DatabaseHelper(Context context) {
+            super(context, DB_NAME, null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + DB_TABLE + "("
+                    + COLUMN_UID + " INTEGER NOT NULL,"
+                    + COLUMN_URL + " TEXT NOT NULL,"
+                    + COLUMN_ETAG + " TEXT,"
+                    + COLUMN_LAST_MODIFIED + " TEXT,"
+                    + COLUMN_MIME_TYPE + " TEXT,"
+                    + COLUMN_CONTENT_DISPOSITION + " TEXT,"
+                    + COLUMN_LENGTH + " INTEGER NOT NULL,"
+                    + COLUMN_FILENAME + " TEXT NOT NULL,"
+                    + COLUMN_LAST_ACCESS + " INTEGER NOT NULL,"
+                    + COLUMN_DOWNLOAD_ID + " INTEGER NOT NULL,"
+                    + "PRIMARY KEY (" + COLUMN_UID + "," + COLUMN_URL + "));");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldV, int newV) {
+            // contents are only an optimization, so start over
+            db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
+            onCreate(db);
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final long mMaxEntryBytes;
+    private final DatabaseHelper mOpenHelper;
+
+    private long mHits;
+    private long mMisses;
+
+    public DownloadCache(Context context, File directory, long maxBytes, long maxEntryBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mMaxEntryBytes = maxEntryBytes;
+        mOpenHelper = new DatabaseHelper(context);
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Return the response the given UID cached for the given URL, or
+     * {@code null} when nothing usable is cached.
+     */
+    public synchronized Entry get(int uid, String url) {
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        final Cursor cursor = db.query(DB_TABLE, null, WHERE_UID_URL,
+                new String[] { String.valueOf(uid), url }, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            final Entry entry = new Entry(cursor);
+            if (entry.mFile.length() != entry.mLength) {
+                // copy went missing underneath us
+                removeLocked(entry);
+                return null;
+            }
+            return entry;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Record whether a conditional request for the given entry was answered
+     * from the cache, marking it recently used when it was.
+     */
+    public synchronized void noteRevalidated(Entry entry, boolean hit) {
+        if (hit) {
+            mHits++;
+            final ContentValues values = new ContentValues();
+            values.put(COLUMN_LAST_ACCESS, System.currentTimeMillis());
+            mOpenHelper.getWritableDatabase().update(DB_TABLE, values, WHERE_UID_URL,
+                    new String[] { String.valueOf(entry.mUid), entry.mUrl });
+        } else {
+            mMisses++;
+        }
+    }
+
+    /**
+     * Keep a copy of the given completed download, replacing anything its
+     * UID already cached for the URL. Failures are logged, since caching is
+     * only an optimization.
+     *
+     * @param downloadId of the download copied, which the entry is removed
+     *            with.
+     */
+    public synchronized void put(long downloadId, int uid, String url, String eTag,
+            String lastModified, String mimeType, String contentDisposition, File source) {
+        final long length = source.length();
+        if (length <= 0 || length > mMaxEntryBytes) {
+            return;
+        }
+
+        File file = null;
+        try {
+            mDirectory.mkdirs();
+            file = File.createTempFile("entry", null, mDirectory);
+            Helpers.copyFile(source, file);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache download: " + e);
+            if (file != null) file.delete();
+            return;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Failed to cache download: " + e);
+            if (file != null) file.delete();
+            return;
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Entry existing = get(uid, url);
+        if (existing != null) {
+            removeLocked(existing);
+        }
+
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_UID, uid);
+        values.put(COLUMN_URL, url);
+        values.put(COLUMN_ETAG, eTag);
+        values.put(COLUMN_LAST_MODIFIED, lastModified);
+        values.put(COLUMN_MIME_TYPE, mimeType);
+        values.put(COLUMN_CONTENT_DISPOSITION, contentDisposition);
+        values.put(COLUMN_LENGTH, length);
+        values.put(COLUMN_FILENAME, file.getAbsolutePath());
+        values.put(COLUMN_LAST_ACCESS, System.currentTimeMillis());
+        values.put(COLUMN_DOWNLOAD_ID, downloadId);
+        db.insert(DB_TABLE, null, values);
+
+        trimLocked(mMaxBytes);
+    }
+
+    /**
+     * Remove anything copied from the given download, since it's being
+     * deleted.
+     */
+    public synchronized void removeDownload(long downloadId) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Cursor cursor = db.query(DB_TABLE, null, COLUMN_DOWNLOAD_ID + "=?",
+                new String[] { String.valueOf(downloadId) }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                removeLocked(new Entry(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Remove anything copied from downloads other than the given ones,
+     * catching downloads deleted while nobody was watching.
+     */
+    public synchronized void retainDownloads(Set<Long> downloadIds) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Cursor cursor = db.query(DB_TABLE, null, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                final Entry entry = new Entry(cursor);
+                if (!downloadIds.contains(entry.mDownloadId)) {
+                    removeLocked(entry);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Evict least recently used entries until the cache holds no more than
+     * the given number of bytes.
+     *
+     * @return number of bytes freed.
+     */
+    public synchronized long trim(long targetBytes) {
+        return trimLocked(targetBytes);
+    }
+
+    private long trimLocked(long targetBytes) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Cursor cursor = db.query(
+                DB_TABLE, null, null, null, null, null, COLUMN_LAST_ACCESS + " DESC");
+        long total = 0;
+        long freed = 0;
+        try {
+            while (cursor.moveToNext()) {
+                final Entry entry = new Entry(cursor);
+                total += entry.mLength;
+                if (total > targetBytes) {
+                    removeLocked(entry);
+                    freed += entry.mLength;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (freed > 0 && Constants.LOGV) {
+            Log.v(TAG, "Trimmed download cache, freed " + freed);
+        }
+        return freed;
+    }
+
+    private void removeLocked(Entry entry) {
+        entry.mFile.delete();
+        mOpenHelper.getWritableDatabase().delete(DB_TABLE, WHERE_UID_URL,
+                new String[] { String.valueOf(entry.mUid), entry.mUrl });
+    }
+
+    public synchronized void dump(IndentingPrintWriter pw) {
+        final Cursor cursor = mOpenHelper.getReadableDatabase().rawQuery(
+                "SELECT COUNT(*), TOTAL(" + COLUMN_LENGTH + ") FROM " + DB_TABLE, null);
+        try {
+            pw.println("DownloadCache:");
+            pw.increaseIndent();
+            if (cursor.moveToFirst()) {
+                pw.printPair("entries", cursor.getLong(0));
+                pw.printPair("bytes", cursor.getLong(1));
+            }
+            pw.printPair("maxBytes", mMaxBytes);
+            pw.printPair("hits", mHits);
+            pw.printPair("misses", mMisses);
+            pw.println();
+            pw.decreaseIndent();
+        } finally {
+            cursor.close();
+        }
+    }
+}
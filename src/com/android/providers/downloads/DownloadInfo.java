@@ -28,6 +28,7 @@ import android.net.NetworkInfo;
 import android.net.NetworkInfo.DetailedState;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.provider.Downloads;
 import android.provider.Downloads.Impl;
 import android.text.TextUtils;
@@ -35,6 +36,7 @@ import android.util.Pair;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.IndentingPrintWriter;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -45,112 +47,157 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 /**
- * Stores information about an individual download.
+ * Stores information about an individual download. While a download is
+ * running, this in-memory object is the source of truth for its current
+ * bytes, which are written back to the provider through a
+ * {@link ProgressAggregator}. Status and control always come from the
+ * provider.
  */
 public class DownloadInfo {
-    // TODO: move towards these in-memory objects being sources of truth, and
-    // periodically pushing to provider.
 
+    /**
+     * Reads downloads from a cursor, resolving column indexes once for the
+     * whole cursor instead of by name for every row.
+     */
     public static class Reader {
-        private ContentResolver mResolver;
+        /**
+         * Columns read for each download on every update pass, which callers
+         * should use as the projection when querying. Columns only needed
+         * once a download runs are read when it starts; see
+         * {@link DownloadInfo#TRANSFER_PROJECTION}.
+         */
+        public static final String[] PROJECTION = new String[] {
+            Downloads.Impl._ID,
+            Downloads.Impl.COLUMN_URI,
+            Downloads.Impl._DATA,
+            Downloads.Impl.COLUMN_MIME_TYPE,
+            Downloads.Impl.COLUMN_DESTINATION,
+            Downloads.Impl.COLUMN_VISIBILITY,
+            Constants.PRIORITY,
+            Downloads.Impl.COLUMN_STATUS,
+            Downloads.Impl.COLUMN_FAILED_CONNECTIONS,
+            Constants.RETRY_AFTER_X_REDIRECT_COUNT,
+            Downloads.Impl.COLUMN_LAST_MODIFICATION,
+            Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE,
+            Downloads.Impl.COLUMN_TOTAL_BYTES,
+            Downloads.Impl.COLUMN_CURRENT_BYTES,
+            Constants.UID,
+            Constants.MEDIA_SCANNED,
+            Downloads.Impl.COLUMN_DELETED,
+            Downloads.Impl.COLUMN_MEDIAPROVIDER_URI,
+            Downloads.Impl.COLUMN_IS_PUBLIC_API,
+            Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES,
+            Downloads.Impl.COLUMN_ALLOW_ROAMING,
+            Downloads.Impl.COLUMN_ALLOW_METERED,
+            Downloads.Impl.COLUMN_TITLE,
+            Downloads.Impl.COLUMN_DESCRIPTION,
+            Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT,
+            Downloads.Impl.COLUMN_CONTROL,
+            Constants.CHANGE_SEQ,
+        };
+
+        private static final int COL_ID = 0;
+        private static final int COL_URI = 1;
+        private static final int COL_DATA = 2;
+        private static final int COL_MIME_TYPE = 3;
+        private static final int COL_DESTINATION = 4;
+        private static final int COL_VISIBILITY = 5;
+        private static final int COL_PRIORITY = 6;
+        private static final int COL_STATUS = 7;
+        private static final int COL_FAILED_CONNECTIONS = 8;
+        private static final int COL_RETRY_AFTER = 9;
+        private static final int COL_LAST_MODIFICATION = 10;
+        private static final int COL_PACKAGE = 11;
+        private static final int COL_TOTAL_BYTES = 12;
+        private static final int COL_CURRENT_BYTES = 13;
+        private static final int COL_UID = 14;
+        private static final int COL_MEDIA_SCANNED = 15;
+        private static final int COL_DELETED = 16;
+        private static final int COL_MEDIAPROVIDER_URI = 17;
+        private static final int COL_IS_PUBLIC_API = 18;
+        private static final int COL_ALLOWED_NETWORK_TYPES = 19;
+        private static final int COL_ALLOW_ROAMING = 20;
+        private static final int COL_ALLOW_METERED = 21;
+        private static final int COL_TITLE = 22;
+        private static final int COL_DESCRIPTION = 23;
+        private static final int COL_BYPASS_SIZE_LIMIT = 24;
+        private static final int COL_CONTROL = 25;
+        private static final int COL_CHANGE_SEQ = 26;
+
         private Cursor mCursor;
+        private final int[] mIndexes = new int[PROJECTION.length];
 
-        public Reader(ContentResolver resolver, Cursor cursor) {
-            mResolver = resolver;
+        public Reader(Cursor cursor) {
             mCursor = cursor;
+            for (int i = 0; i < PROJECTION.length; i++) {
+                mIndexes[i] = cursor.getColumnIndexOrThrow(PROJECTION[i]);
+            }
         }
 
         public DownloadInfo newDownloadInfo(Context context, SystemFacade systemFacade,
-                StorageManager storageManager, DownloadNotifier notifier) {
-            final DownloadInfo info = new DownloadInfo(
-                    context, systemFacade, storageManager, notifier);
+                StorageManager storageManager, DownloadNotifier notifier,
+                KeepAliveTransport transport, BandwidthLimiter limiter,
+                TransferCoalescer coalescer, ProgressAggregator progress,
+                NetworkSnapshotCache networks) {
+            final DownloadInfo info = new DownloadInfo(context, systemFacade, storageManager,
+                    notifier, transport, limiter, coalescer, progress, networks);
             updateFromDatabase(info);
-            readRequestHeaders(info);
             return info;
         }
 
-        public void updateFromDatabase(DownloadInfo info) {
-            info.mId = getLong(Downloads.Impl._ID);
-            info.mUri = getString(Downloads.Impl.COLUMN_URI);
-            info.mNoIntegrity = getInt(Downloads.Impl.COLUMN_NO_INTEGRITY) == 1;
-            info.mHint = getString(Downloads.Impl.COLUMN_FILE_NAME_HINT);
-            info.mFileName = getString(Downloads.Impl._DATA);
-            info.mMimeType = getString(Downloads.Impl.COLUMN_MIME_TYPE);
-            info.mDestination = getInt(Downloads.Impl.COLUMN_DESTINATION);
-            info.mVisibility = getInt(Downloads.Impl.COLUMN_VISIBILITY);
-            info.mStatus = getInt(Downloads.Impl.COLUMN_STATUS);
-            info.mNumFailed = getInt(Downloads.Impl.COLUMN_FAILED_CONNECTIONS);
-            int retryRedirect = getInt(Constants.RETRY_AFTER_X_REDIRECT_COUNT);
-            info.mRetryAfter = retryRedirect & 0xfffffff;
-            info.mLastMod = getLong(Downloads.Impl.COLUMN_LAST_MODIFICATION);
-            info.mPackage = getString(Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE);
-            info.mClass = getString(Downloads.Impl.COLUMN_NOTIFICATION_CLASS);
-            info.mExtras = getString(Downloads.Impl.COLUMN_NOTIFICATION_EXTRAS);
-            info.mCookies = getString(Downloads.Impl.COLUMN_COOKIE_DATA);
-            info.mUserAgent = getString(Downloads.Impl.COLUMN_USER_AGENT);
-            info.mReferer = getString(Downloads.Impl.COLUMN_REFERER);
-            info.mTotalBytes = getLong(Downloads.Impl.COLUMN_TOTAL_BYTES);
-            info.mCurrentBytes = getLong(Downloads.Impl.COLUMN_CURRENT_BYTES);
-            info.mETag = getString(Constants.ETAG);
-            info.mUid = getInt(Constants.UID);
-            info.mMediaScanned = getInt(Constants.MEDIA_SCANNED);
-            info.mDeleted = getInt(Downloads.Impl.COLUMN_DELETED) == 1;
-            info.mMediaProviderUri = getString(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI);
-            info.mIsPublicApi = getInt(Downloads.Impl.COLUMN_IS_PUBLIC_API) != 0;
-            info.mAllowedNetworkTypes = getInt(Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES);
-            info.mAllowRoaming = getInt(Downloads.Impl.COLUMN_ALLOW_ROAMING) != 0;
-            info.mAllowMetered = getInt(Downloads.Impl.COLUMN_ALLOW_METERED) != 0;
-            info.mTitle = getString(Downloads.Impl.COLUMN_TITLE);
-            info.mDescription = getString(Downloads.Impl.COLUMN_DESCRIPTION);
-            info.mBypassRecommendedSizeLimit =
-                    getInt(Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT);
-
-            synchronized (this) {
-                info.mControl = getInt(Downloads.Impl.COLUMN_CONTROL);
-            }
+        public long getId() {
+            return getLong(COL_ID);
         }
 
-        private void readRequestHeaders(DownloadInfo info) {
-            info.mRequestHeaders.clear();
-            Uri headerUri = Uri.withAppendedPath(
-                    info.getAllDownloadsUri(), Downloads.Impl.RequestHeaders.URI_SEGMENT);
-            Cursor cursor = mResolver.query(headerUri, null, null, null, null);
-            try {
-                int headerIndex =
-                        cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_HEADER);
-                int valueIndex =
-                        cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_VALUE);
-                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                    addHeader(info, cursor.getString(headerIndex), cursor.getString(valueIndex));
-                }
-            } finally {
-                cursor.close();
-            }
-
-            if (info.mCookies != null) {
-                addHeader(info, "Cookie", info.mCookies);
-            }
-            if (info.mReferer != null) {
-                addHeader(info, "Referer", info.mReferer);
-            }
+        public long getChangeSeq() {
+            return getLong(COL_CHANGE_SEQ);
         }
 
-        private void addHeader(DownloadInfo info, String header, String value) {
-            info.mRequestHeaders.add(Pair.create(header, value));
-        }
-
-        private String getString(String column) {
-            int index = mCursor.getColumnIndexOrThrow(column);
-            String s = mCursor.getString(index);
+        public void updateFromDatabase(DownloadInfo info) {
+            info.mId = getLong(COL_ID);
+            info.mUri = getString(COL_URI);
+            info.mFileName = getString(COL_DATA);
+            info.mMimeType = getString(COL_MIME_TYPE);
+            info.mDestination = getInt(COL_DESTINATION);
+            info.mVisibility = getInt(COL_VISIBILITY);
+            info.mPriority = getInt(COL_PRIORITY);
+            info.mStatus = getInt(COL_STATUS);
+            info.mNumFailed = getInt(COL_FAILED_CONNECTIONS);
+            int retryRedirect = getInt(COL_RETRY_AFTER);
+            info.mRetryAfter = retryRedirect & 0xfffffff;
+            info.mLastMod = getLong(COL_LAST_MODIFICATION);
+            info.mPackage = getString(COL_PACKAGE);
+            info.mTotalBytes = getLong(COL_TOTAL_BYTES);
+            // provider lags behind the progress a running download holds
+            if (!info.isActive()) {
+                info.mCurrentBytes = getLong(COL_CURRENT_BYTES);
+            }
+            info.mUid = getInt(COL_UID);
+            info.mMediaScanned = getInt(COL_MEDIA_SCANNED);
+            info.mDeleted = getInt(COL_DELETED) == 1;
+            info.mMediaProviderUri = getString(COL_MEDIAPROVIDER_URI);
+            info.mIsPublicApi = getInt(COL_IS_PUBLIC_API) != 0;
+            info.mAllowedNetworkTypes = getInt(COL_ALLOWED_NETWORK_TYPES);
+            info.mAllowRoaming = getInt(COL_ALLOW_ROAMING) != 0;
+            info.mAllowMetered = getInt(COL_ALLOW_METERED) != 0;
+            info.mTitle = getString(COL_TITLE);
+            info.mDescription = getString(COL_DESCRIPTION);
+            info.mBypassRecommendedSizeLimit = getInt(COL_BYPASS_SIZE_LIMIT);
+
+            info.mControl = getInt(COL_CONTROL);
+        }
+
+        private String getString(int column) {
+            String s = mCursor.getString(mIndexes[column]);
             return (TextUtils.isEmpty(s)) ? null : s;
         }
 
-        private Integer getInt(String column) {
-            return mCursor.getInt(mCursor.getColumnIndexOrThrow(column));
+        private int getInt(int column) {
+            return mCursor.getInt(mIndexes[column]);
         }
 
-        private Long getLong(String column) {
-            return mCursor.getLong(mCursor.getColumnIndexOrThrow(column));
+        private long getLong(int column) {
+            return mCursor.getLong(mIndexes[column]);
         }
     }
 
@@ -212,8 +259,11 @@ public class DownloadInfo {
     public String mMimeType;
     public int mDestination;
     public int mVisibility;
-    public int mControl;
-    public int mStatus;
+    public int mPriority;
+    /** Read by {@link DownloadThread} without locking while transferring. */
+    public volatile int mControl;
+    /** Read by {@link DownloadThread} without locking while transferring. */
+    public volatile int mStatus;
     public int mNumFailed;
     public int mRetryAfter;
     public long mLastMod;
@@ -224,8 +274,12 @@ public class DownloadInfo {
     public String mUserAgent;
     public String mReferer;
     public long mTotalBytes;
-    public long mCurrentBytes;
+    public volatile long mCurrentBytes;
     public String mETag;
+    public String mSegments;
+    public String mContentEncoding;
+    public String mExpectedHash;
+    public String mDigestState;
     public int mUid;
     public int mMediaScanned;
     public boolean mDeleted;
@@ -240,7 +294,28 @@ public class DownloadInfo {
 
     public int mFuzz;
 
-    private List<Pair<String, String>> mRequestHeaders = new ArrayList<Pair<String, String>>();
+    /** Loaded on first use, since most downloads never run again. */
+    private volatile List<Pair<String, String>> mRequestHeaders;
+
+    /**
+     * Columns only needed by {@link DownloadThread}, read each time the
+     * download starts by {@link #readTransferDetails()} instead of on every
+     * update pass.
+     */
+    static final String[] TRANSFER_PROJECTION = new String[] {
+        Downloads.Impl.COLUMN_NO_INTEGRITY,
+        Downloads.Impl.COLUMN_FILE_NAME_HINT,
+        Downloads.Impl.COLUMN_NOTIFICATION_CLASS,
+        Downloads.Impl.COLUMN_NOTIFICATION_EXTRAS,
+        Downloads.Impl.COLUMN_COOKIE_DATA,
+        Downloads.Impl.COLUMN_USER_AGENT,
+        Downloads.Impl.COLUMN_REFERER,
+        Constants.ETAG,
+        Constants.SEGMENTS,
+        Constants.CONTENT_ENCODING,
+        Constants.EXPECTED_HASH,
+        Constants.DIGEST_STATE,
+    };
 
     /**
      * Result of last {@link DownloadThread} started by
@@ -252,22 +327,106 @@ public class DownloadInfo {
     @GuardedBy("this")
     private DownloadThread mTask;
 
+    /**
+     * When this download entered the {@link DownloadScheduler} queue, kept
+     * across a requeue after yielding to higher priority work.
+     */
+    @GuardedBy("this")
+    private long mEnqueueTime;
+
     private final Context mContext;
     private final SystemFacade mSystemFacade;
     private final StorageManager mStorageManager;
     private final DownloadNotifier mNotifier;
-
-    private DownloadInfo(Context context, SystemFacade systemFacade, StorageManager storageManager,
-            DownloadNotifier notifier) {
+    private final KeepAliveTransport mTransport;
+    private final BandwidthLimiter mLimiter;
+    private final TransferCoalescer mCoalescer;
+    private final ProgressAggregator mProgress;
+    private final NetworkSnapshotCache mNetworks;
+
+    @VisibleForTesting
+    DownloadInfo(Context context, SystemFacade systemFacade, StorageManager storageManager,
+            DownloadNotifier notifier, KeepAliveTransport transport, BandwidthLimiter limiter,
+            TransferCoalescer coalescer, ProgressAggregator progress,
+            NetworkSnapshotCache networks) {
         mContext = context;
         mSystemFacade = systemFacade;
         mStorageManager = storageManager;
         mNotifier = notifier;
+        mTransport = transport;
+        mLimiter = limiter;
+        mCoalescer = coalescer;
+        mProgress = progress;
+        mNetworks = networks;
         mFuzz = Helpers.sRandom.nextInt(1001);
     }
 
+    /**
+     * Read the columns in {@link #TRANSFER_PROJECTION}, which must happen
+     * before a {@link DownloadThread} is started for this download.
+     */
+    private void readTransferDetails() {
+        final Cursor cursor = mContext.getContentResolver().query(
+                getAllDownloadsUri(), TRANSFER_PROJECTION, null, null, null);
+        if (cursor == null) return;
+        try {
+            if (!cursor.moveToFirst()) return;
+            mNoIntegrity = cursor.getInt(0) == 1;
+            mHint = getDetail(cursor, 1);
+            mClass = getDetail(cursor, 2);
+            mExtras = getDetail(cursor, 3);
+            mCookies = getDetail(cursor, 4);
+            mUserAgent = getDetail(cursor, 5);
+            mReferer = getDetail(cursor, 6);
+            mETag = getDetail(cursor, 7);
+            mSegments = getDetail(cursor, 8);
+            mContentEncoding = getDetail(cursor, 9);
+            mExpectedHash = getDetail(cursor, 10);
+            mDigestState = getDetail(cursor, 11);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String getDetail(Cursor cursor, int column) {
+        final String s = cursor.getString(column);
+        return (TextUtils.isEmpty(s)) ? null : s;
+    }
+
     public Collection<Pair<String, String>> getHeaders() {
-        return Collections.unmodifiableList(mRequestHeaders);
+        List<Pair<String, String>> headers = mRequestHeaders;
+        if (headers == null) {
+            headers = readRequestHeaders();
+            mRequestHeaders = headers;
+        }
+        return Collections.unmodifiableList(headers);
+    }
+
+    private List<Pair<String, String>> readRequestHeaders() {
+        final List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>();
+        Uri headerUri = Uri.withAppendedPath(
+                getAllDownloadsUri(), Downloads.Impl.RequestHeaders.URI_SEGMENT);
+        Cursor cursor = mContext.getContentResolver().query(headerUri, null, null, null, null);
+        try {
+            int headerIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_HEADER);
+            int valueIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_VALUE);
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                headers.add(Pair.create(cursor.getString(headerIndex),
+                        cursor.getString(valueIndex)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (mCookies != null) {
+            headers.add(Pair.create("Cookie", mCookies));
+        }
+        if (mReferer != null) {
+            headers.add(Pair.create("Referer", mReferer));
+        }
+        return headers;
     }
 
     public void sendIntentIfRequested() {
@@ -320,6 +479,10 @@ public class DownloadInfo {
             // the download is paused, so it's not going to start
             return false;
         }
+        if (mCoalescer != null && mCoalescer.isFollowing(mId)) {
+            // parked until the transfer it follows finishes
+            return false;
+        }
         switch (mStatus) {
             case 0: // status hasn't been initialized yet, this is a new download
             case Downloads.Impl.STATUS_PENDING: // download is explicit marked as ready to start
@@ -359,24 +522,46 @@ public class DownloadInfo {
         return false;
     }
 
+    /**
+     * Returns the {@link DownloadScheduler} priority class of this download,
+     * using any explicit priority before falling back to visibility.
+     */
+    public int getPriorityClass() {
+        if (mPriority > 0) {
+            return DownloadScheduler.PRIORITY_FOREGROUND;
+        } else if (mPriority < 0) {
+            return DownloadScheduler.PRIORITY_BACKGROUND;
+        }
+        switch (mVisibility) {
+            case Downloads.Impl.VISIBILITY_VISIBLE:
+            case Downloads.Impl.VISIBILITY_VISIBLE_NOTIFY_COMPLETED:
+                return DownloadScheduler.PRIORITY_FOREGROUND;
+            case Downloads.Impl.VISIBILITY_HIDDEN:
+                return DownloadScheduler.PRIORITY_BACKGROUND;
+            default:
+                return DownloadScheduler.PRIORITY_NORMAL;
+        }
+    }
+
     /**
      * Returns whether this download is allowed to use the network.
      */
     public NetworkState checkCanUseNetwork() {
-        final NetworkInfo info = mSystemFacade.getActiveNetworkInfo(mUid);
+        final NetworkSnapshotCache.Snapshot network = mNetworks.get(mUid);
+        final NetworkInfo info = network.mInfo;
         if (info == null || !info.isConnected()) {
             return NetworkState.NO_CONNECTION;
         }
         if (DetailedState.BLOCKED.equals(info.getDetailedState())) {
             return NetworkState.BLOCKED;
         }
-        if (mSystemFacade.isNetworkRoaming() && !isRoamingAllowed()) {
+        if (network.mRoaming && !isRoamingAllowed()) {
             return NetworkState.CANNOT_USE_ROAMING;
         }
-        if (mSystemFacade.isActiveNetworkMetered() && !mAllowMetered) {
+        if (network.mMetered && !mAllowMetered) {
             return NetworkState.TYPE_DISALLOWED_BY_REQUESTOR;
         }
-        return checkIsNetworkTypeAllowed(info.getType());
+        return checkIsNetworkTypeAllowed(network, info.getType());
     }
 
     private boolean isRoamingAllowed() {
@@ -392,7 +577,8 @@ public class DownloadInfo {
      * @param networkType a constant from ConnectivityManager.TYPE_*.
      * @return one of the NETWORK_* constants
      */
-    private NetworkState checkIsNetworkTypeAllowed(int networkType) {
+    private NetworkState checkIsNetworkTypeAllowed(
+            NetworkSnapshotCache.Snapshot network, int networkType) {
         if (mIsPublicApi) {
             final int flag = translateNetworkTypeToApiFlag(networkType);
             final boolean allowAllNetworkTypes = mAllowedNetworkTypes == ~0;
@@ -400,7 +586,7 @@ public class DownloadInfo {
                 return NetworkState.TYPE_DISALLOWED_BY_REQUESTOR;
             }
         }
-        return checkSizeAllowedForNetwork(networkType);
+        return checkSizeAllowedForNetwork(network, networkType);
     }
 
     /**
@@ -427,19 +613,20 @@ public class DownloadInfo {
      * Check if the download's size prohibits it from running over the current network.
      * @return one of the NETWORK_* constants
      */
-    private NetworkState checkSizeAllowedForNetwork(int networkType) {
+    private NetworkState checkSizeAllowedForNetwork(
+            NetworkSnapshotCache.Snapshot network, int networkType) {
         if (mTotalBytes <= 0) {
             return NetworkState.OK; // we don't know the size yet
         }
         if (networkType == ConnectivityManager.TYPE_WIFI) {
             return NetworkState.OK; // anything goes over wifi
         }
-        Long maxBytesOverMobile = mSystemFacade.getMaxBytesOverMobile();
+        Long maxBytesOverMobile = network.mMaxBytesOverMobile;
         if (maxBytesOverMobile != null && mTotalBytes > maxBytesOverMobile) {
             return NetworkState.UNUSABLE_DUE_TO_SIZE;
         }
         if (mBypassRecommendedSizeLimit == 0) {
-            Long recommendedMaxBytesOverMobile = mSystemFacade.getRecommendedMaxBytesOverMobile();
+            Long recommendedMaxBytesOverMobile = network.mRecommendedMaxBytesOverMobile;
             if (recommendedMaxBytesOverMobile != null
                     && mTotalBytes > recommendedMaxBytesOverMobile) {
                 return NetworkState.RECOMMENDED_UNUSABLE_DUE_TO_SIZE;
@@ -456,23 +643,54 @@ public class DownloadInfo {
      * @return If actively downloading.
      */
     public boolean startDownloadIfReady(ExecutorService executor) {
+        final boolean isReady;
+        final boolean shouldStart;
+        final boolean markRunning;
         synchronized (this) {
-            final boolean isReady = isReadyToDownload();
-            final boolean isActive = mSubmittedTask != null && !mSubmittedTask.isDone();
-            if (isReady && !isActive) {
-                if (mStatus != Impl.STATUS_RUNNING) {
-                    mStatus = Impl.STATUS_RUNNING;
-                    ContentValues values = new ContentValues();
-                    values.put(Impl.COLUMN_STATUS, mStatus);
-                    mContext.getContentResolver().update(getAllDownloadsUri(), values, null, null);
-                }
+            isReady = isReadyToDownload();
+            shouldStart = isReady && !isActive();
+            markRunning = shouldStart && mStatus != Impl.STATUS_RUNNING;
+            if (markRunning) {
+                mStatus = Impl.STATUS_RUNNING;
+            }
+        }
 
-                mTask = new DownloadThread(
-                        mContext, mSystemFacade, this, mStorageManager, mNotifier);
+        // Persist before submitting, so our write can't land after the
+        // thread records its final status; done outside lock since it's I/O.
+        if (markRunning) {
+            ContentValues values = new ContentValues();
+            values.put(Impl.COLUMN_STATUS, Impl.STATUS_RUNNING);
+            mContext.getContentResolver().update(getAllDownloadsUri(), values, null, null);
+        }
+
+        if (shouldStart) {
+            readTransferDetails();
+            synchronized (this) {
+                if (mTask == null || !mTask.hasYielded()) {
+                    mEnqueueTime = SystemClock.elapsedRealtime();
+                }
+                mTask = new DownloadThread(mContext, mSystemFacade, this, mStorageManager,
+                        mNotifier, mTransport, mLimiter, mCoalescer, mProgress);
                 mSubmittedTask = executor.submit(mTask);
             }
-            return isReady;
         }
+        return isReady;
+    }
+
+    /**
+     * Returns when this download entered the {@link DownloadScheduler}
+     * queue, in {@link SystemClock#elapsedRealtime()} time.
+     */
+    public synchronized long getEnqueueTime() {
+        return mEnqueueTime;
+    }
+
+    /**
+     * Returns if a {@link DownloadThread} has been submitted for this
+     * download and hasn't finished yet.
+     */
+    public synchronized boolean isActive() {
+        return mSubmittedTask != null && !mSubmittedTask.isDone();
     }
 
     /**
@@ -529,14 +747,18 @@ public class DownloadInfo {
         pw.printPair("mDestination", mDestination);
         pw.println();
 
+        pw.printPair("mPriority", mPriority);
         pw.printPair("mStatus", Downloads.Impl.statusToString(mStatus));
         pw.printPair("mCurrentBytes", mCurrentBytes);
         pw.printPair("mTotalBytes", mTotalBytes);
+        pw.printPair("mSegments", mSegments);
         pw.println();
 
         pw.printPair("mNumFailed", mNumFailed);
         pw.printPair("mRetryAfter", mRetryAfter);
         pw.printPair("mETag", mETag);
+        pw.printPair("mContentEncoding", mContentEncoding);
+        pw.printPair("mExpectedHash", mExpectedHash);
         pw.printPair("mIsPublicApi", mIsPublicApi);
         pw.println();
 
@@ -548,27 +770,6 @@ public class DownloadInfo {
         pw.decreaseIndent();
     }
 
-    /**
-     * Return time when this download will be ready for its next action, in
-     * milliseconds after given time.
-     *
-     * @return If {@code 0}, download is ready to proceed immediately. If
-     *         {@link Long#MAX_VALUE}, then download has no future actions.
-     */
-    public long nextActionMillis(long now) {
-        if (Downloads.Impl.isStatusCompleted(mStatus)) {
-            return Long.MAX_VALUE;
-        }
-        if (mStatus != Downloads.Impl.STATUS_WAITING_TO_RETRY) {
-            return 0;
-        }
-        long when = restartTime(now);
-        if (when <= now) {
-            return 0;
-        }
-        return when - now;
-    }
-
     /**
      * Returns whether a file should be scanned
      */
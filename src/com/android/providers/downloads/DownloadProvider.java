@@ -34,8 +34,10 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Bundle;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
 import android.os.Process;
 import android.os.SELinux;
 import android.provider.BaseColumns;
@@ -45,9 +47,11 @@ import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.IndentingPrintWriter;
 import com.google.android.collect.Maps;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Sets;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -61,6 +65,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Allows application to interact with the download manager.
@@ -69,7 +74,7 @@ public final class DownloadProvider extends ContentProvider {
     /** Database filename */
     private static final String DB_NAME = "downloads.db";
     /** Current database version */
-    private static final int DB_VERSION = 108;
+    private static final int DB_VERSION = 113;
     /** Name of table in the database */
     private static final String DB_TABLE = "downloads";
 
@@ -95,6 +100,8 @@ public final class DownloadProvider extends ContentProvider {
      * is publicly accessible.
      */
     private static final int PUBLIC_DOWNLOAD_ID = 6;
+    /** URI matcher constant for the internal URI of downloads changed since a sequence */
+    private static final int CHANGED_DOWNLOADS = 7;
     static {
         sURIMatcher.addURI("downloads", "my_downloads", MY_DOWNLOADS);
         sURIMatcher.addURI("downloads", "my_downloads/#", MY_DOWNLOADS_ID);
@@ -115,8 +122,30 @@ public final class DownloadProvider extends ContentProvider {
         sURIMatcher.addURI("downloads",
                 Downloads.Impl.PUBLICLY_ACCESSIBLE_DOWNLOADS_URI_SEGMENT + "/#",
                 PUBLIC_DOWNLOAD_ID);
+        sURIMatcher.addURI("downloads", "changed_downloads/#", CHANGED_DOWNLOADS);
     }
 
+    /** Change that only advances progress of a running download */
+    private static final String CHANGE_PROGRESS = "progress";
+    /** Change to the control column, such as pausing */
+    private static final String CHANGE_CONTROL = "control";
+    /** Change to the status column */
+    private static final String CHANGE_STATUS = "status";
+    /** Newly inserted download */
+    private static final String CHANGE_INSERT = "insert";
+    /** Download marked deleted, or actually removed */
+    private static final String CHANGE_DELETE = "delete";
+    /** Any other change, such as visibility or title */
+    private static final String CHANGE_OTHER = "other";
+
+    /** Columns that only record progress of a running download */
+    private static final HashSet<String> sProgressColumns = Sets.newHashSet(
+            Downloads.Impl.COLUMN_CURRENT_BYTES,
+            Downloads.Impl.COLUMN_TOTAL_BYTES,
+            Downloads.Impl.COLUMN_LAST_MODIFICATION,
+            Constants.SEGMENTS,
+            Constants.DIGEST_STATE);
+
     /** Different base URIs that could be used to access an individual download */
     private static final Uri[] BASE_URIS = new Uri[] {
             Downloads.Impl.CONTENT_URI,
@@ -177,6 +206,13 @@ public final class DownloadProvider extends ContentProvider {
     @VisibleForTesting
     SystemFacade mSystemFacade;
 
+    /** Last {@link Constants#CHANGE_SEQ} handed out, or -1 before loading */
+    @GuardedBy("this")
+    private long mChangeSeq = -1;
+
+    /** Number of delete operations since this provider was created */
+    private final AtomicLong mDeleteCount = new AtomicLong();
+
     /**
      * This class encapsulates a SQL where clause and its parameters.  It makes it possible for
      * shared methods (like {@link DownloadProvider#getWhereClause(Uri, String, String[], int)})
@@ -319,6 +355,29 @@ public final class DownloadProvider extends ContentProvider {
                             "INTEGER NOT NULL DEFAULT 1");
                     break;
 
+                case 109:
+                    addColumn(db, DB_TABLE, Constants.SEGMENTS, "TEXT");
+                    break;
+
+                case 110:
+                    addColumn(db, DB_TABLE, Constants.CONTENT_ENCODING, "TEXT");
+                    break;
+
+                case 111:
+                    addColumn(db, DB_TABLE, Constants.PRIORITY, "INTEGER NOT NULL DEFAULT 0");
+                    break;
+
+                case 112:
+                    addColumn(db, DB_TABLE, Constants.EXPECTED_HASH, "TEXT");
+                    addColumn(db, DB_TABLE, Constants.DIGEST_STATE, "TEXT");
+                    break;
+
+                case 113:
+                    addColumn(db, DB_TABLE, Constants.CHANGE_SEQ, "INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + Constants.CHANGE_SEQ + "_index ON "
+                            + DB_TABLE + "(" + Constants.CHANGE_SEQ + ")");
+                    break;
+
                 default:
                     throw new IllegalStateException("Don't know how to upgrade to " + version);
             }
@@ -622,6 +681,12 @@ public final class DownloadProvider extends ContentProvider {
         copyString(Downloads.Impl.COLUMN_COOKIE_DATA, values, filteredValues);
         copyString(Downloads.Impl.COLUMN_USER_AGENT, values, filteredValues);
         copyString(Downloads.Impl.COLUMN_REFERER, values, filteredValues);
+        copyInteger(Constants.PRIORITY, values, filteredValues);
+        final String expectedHash = values.getAsString(Constants.EXPECTED_HASH);
+        if (expectedHash != null && !expectedHash.matches("[0-9a-fA-F]{64}")) {
+            throw new IllegalArgumentException("Invalid SHA-256 digest: " + expectedHash);
+        }
+        copyString(Constants.EXPECTED_HASH, values, filteredValues);
 
         // UID, PID columns
         if (getContext().checkCallingPermission(Downloads.Impl.PERMISSION_ACCESS_ADVANCED)
@@ -662,7 +727,15 @@ public final class DownloadProvider extends ContentProvider {
             }
         }
 
-        long rowID = db.insert(DB_TABLE, null, filteredValues);
+        long rowID;
+        db.beginTransaction();
+        try {
+            filteredValues.put(Constants.CHANGE_SEQ, nextChangeSeq(db));
+            rowID = db.insert(DB_TABLE, null, filteredValues);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         if (rowID == -1) {
             Log.d(Constants.TAG, "couldn't insert into downloads database");
             return null;
@@ -680,12 +753,14 @@ public final class DownloadProvider extends ContentProvider {
             // When notification is requested, kick off service to process all
             // relevant downloads.
             if (Downloads.Impl.isNotificationToBeDisplayed(vis)) {
-                context.startService(new Intent(context, DownloadService.class));
+                context.startService(DownloadService.buildStartIntent(
+                        context, DownloadService.REASON_PROVIDER_CHANGED));
             }
         } else {
-            context.startService(new Intent(context, DownloadService.class));
+            context.startService(DownloadService.buildStartIntent(
+                    context, DownloadService.REASON_PROVIDER_CHANGED));
         }
-        notifyContentChanged(uri, match);
+        notifyContentChanged(uri, match, CHANGE_INSERT);
         return ContentUris.withAppendedId(Downloads.Impl.CONTENT_URI, rowID);
     }
 
@@ -784,6 +859,8 @@ public final class DownloadProvider extends ContentProvider {
         values.remove(Downloads.Impl.COLUMN_ALLOW_METERED);
         values.remove(Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI);
         values.remove(Downloads.Impl.COLUMN_MEDIA_SCANNED);
+        values.remove(Constants.PRIORITY);
+        values.remove(Constants.EXPECTED_HASH);
         Iterator<Map.Entry<String, Object>> iterator = values.valueSet().iterator();
         while (iterator.hasNext()) {
             String key = iterator.next().getKey();
@@ -853,6 +930,14 @@ public final class DownloadProvider extends ContentProvider {
             return queryRequestHeaders(db, uri);
         }
 
+        if (match == CHANGED_DOWNLOADS) {
+            if (selection != null || sort != null) {
+                throw new UnsupportedOperationException("Changed download queries do not "
+                                                        + "support selections or sorting");
+            }
+            return queryChangedDownloads(db, uri, projection);
+        }
+
         SqlSelection fullSelection = getWhereClause(uri, selection, selectionArgs, match);
 
         if (shouldRestrictVisibility()) {
@@ -881,10 +966,14 @@ public final class DownloadProvider extends ContentProvider {
             logVerboseQueryInfo(projection, selection, selectionArgs, sort, db);
         }
 
+        // running downloads hold their latest progress in memory
+        ProgressAggregator.prepareQuery(projection);
+
         Cursor ret = db.query(DB_TABLE, projection, fullSelection.getSelection(),
                 fullSelection.getParameters(), null, null, sort);
 
         if (ret != null) {
+            ret = ProgressAggregator.overlayActive(ret);
             ret.setNotificationUri(getContext().getContentResolver(), uri);
             if (Constants.LOGVV) {
                 Log.v(Constants.TAG,
@@ -967,6 +1056,20 @@ public final class DownloadProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Handle a query for the downloads stamped with a
+     * {@link Constants#CHANGE_SEQ} newer than the one in the given URI. Only
+     * {@link DownloadService} may ask, since it selects on an internal
+     * column.
+     */
+    private Cursor queryChangedDownloads(SQLiteDatabase db, Uri uri, String[] projection) {
+        if (Binder.getCallingPid() != Process.myPid()) {
+            throw new SecurityException("Changed downloads can only be read by DownloadManager");
+        }
+        return db.query(DB_TABLE, projection, Constants.CHANGE_SEQ + " > ?",
+                new String[] { uri.getLastPathSegment() }, null, null, null);
+    }
+
     /**
      * Handle a query for the custom request headers registered for a download.
      */
@@ -1043,6 +1146,7 @@ public final class DownloadProvider extends ContentProvider {
             copyString(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI, values, filteredValues);
             copyString(Downloads.Impl.COLUMN_DESCRIPTION, values, filteredValues);
             copyInteger(Downloads.Impl.COLUMN_DELETED, values, filteredValues);
+            copyInteger(Constants.PRIORITY, values, filteredValues);
         } else {
             filteredValues = values;
             String filename = values.getAsString(Downloads.Impl._DATA);
@@ -1064,6 +1168,8 @@ public final class DownloadProvider extends ContentProvider {
             }
         }
 
+        final String change = classifyUpdate(filteredValues);
+
         int match = sURIMatcher.match(uri);
         switch (match) {
             case MY_DOWNLOADS:
@@ -1071,9 +1177,20 @@ public final class DownloadProvider extends ContentProvider {
             case ALL_DOWNLOADS:
             case ALL_DOWNLOADS_ID:
                 SqlSelection selection = getWhereClause(uri, where, whereArgs, match);
-                if (filteredValues.size() > 0) {
+                if (CHANGE_PROGRESS.equals(change)) {
+                    // service already holds progress, so don't stamp
                     count = db.update(DB_TABLE, filteredValues, selection.getSelection(),
                             selection.getParameters());
+                } else if (filteredValues.size() > 0) {
+                    db.beginTransaction();
+                    try {
+                        filteredValues.put(Constants.CHANGE_SEQ, nextChangeSeq(db));
+                        count = db.update(DB_TABLE, filteredValues, selection.getSelection(),
+                                selection.getParameters());
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
                 } else {
                     count = 0;
                 }
@@ -1084,20 +1201,128 @@ public final class DownloadProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot update URI: " + uri);
         }
 
-        notifyContentChanged(uri, match);
+        notifyContentChanged(uri, match, change);
         if (startService) {
             Context context = getContext();
-            context.startService(new Intent(context, DownloadService.class));
+            context.startService(DownloadService.buildStartIntent(
+                    context, DownloadService.REASON_PROVIDER_CHANGED));
         }
         return count;
     }
 
     /**
-     * Notify of a change through both URIs (/my_downloads and /all_downloads)
+     * Returns the next {@link Constants#CHANGE_SEQ} to stamp a row with.
+     * Must be called inside the transaction making the change, so sequences
+     * become visible in the order they were handed out, and so the database
+     * is always locked before this provider.
+     */
+    private synchronized long nextChangeSeq(SQLiteDatabase db) {
+        mChangeSeq = currentChangeSeq(db) + 1;
+        return mChangeSeq;
+    }
+
+    /**
+     * Returns the last {@link Constants#CHANGE_SEQ} handed out.
+     */
+    private synchronized long currentChangeSeq(SQLiteDatabase db) {
+        if (mChangeSeq == -1) {
+            mChangeSeq = DatabaseUtils.longForQuery(db, "SELECT MAX(" + Constants.CHANGE_SEQ
+                    + ") FROM " + DB_TABLE, null);
+        }
+        return mChangeSeq;
+    }
+
+    /**
+     * Handles methods used by {@link DownloadService}, which are only
+     * callable from within this process.
+     * <ul>
+     * <li>{@link Constants#METHOD_GET_CHANGES} returns the latest change
+     * sequence and delete count, so the service can tell what changed since
+     * its last pass.
+     * <li>{@link Constants#METHOD_UPDATE_PROGRESS} writes progress of several
+     * downloads in a single transaction followed by one change notification.
+     * Rows aren't stamped with a change sequence, since the service already
+     * holds this state in memory.
+     * </ul>
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!Constants.METHOD_UPDATE_PROGRESS.equals(method)
+                && !Constants.METHOD_GET_CHANGES.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        if (Binder.getCallingPid() != Process.myPid()) {
+            throw new SecurityException(method + " can only be called by DownloadManager");
+        }
+
+        if (Constants.METHOD_GET_CHANGES.equals(method)) {
+            final Bundle result = new Bundle();
+            // take the database first, same as writers handing out sequences
+            final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                result.putLong(Constants.EXTRA_CHANGE_SEQ, currentChangeSeq(db));
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            result.putLong(Constants.EXTRA_DELETE_COUNT, mDeleteCount.get());
+            return result;
+        }
+
+        final long[] ids = extras.getLongArray(Constants.EXTRA_IDS);
+        final Parcelable[] values = extras.getParcelableArray(Constants.EXTRA_VALUES);
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                db.update(DB_TABLE, (ContentValues) values[i], Downloads.Impl._ID + "=?",
+                        new String[] { String.valueOf(ids[i]) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // observers of individual downloads hear about changes to the base
+        String change = CHANGE_PROGRESS;
+        for (Parcelable value : values) {
+            if (!CHANGE_PROGRESS.equals(classifyUpdate((ContentValues) value))) {
+                change = CHANGE_OTHER;
+            }
+        }
+        notifyContentChanged(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, ALL_DOWNLOADS, change);
+        return null;
+    }
+
+    /**
+     * Classify an update by the columns it changes, returning one of the
+     * CHANGE_* constants.
+     */
+    private static String classifyUpdate(ContentValues values) {
+        if (values.containsKey(Downloads.Impl.COLUMN_DELETED)) {
+            return CHANGE_DELETE;
+        } else if (values.containsKey(Downloads.Impl.COLUMN_STATUS)) {
+            return CHANGE_STATUS;
+        } else if (values.containsKey(Downloads.Impl.COLUMN_CONTROL)) {
+            return CHANGE_CONTROL;
+        } else if (values.size() > 0 && sProgressColumns.containsAll(values.keySet())) {
+            return CHANGE_PROGRESS;
+        } else {
+            return CHANGE_OTHER;
+        }
+    }
+
+    /**
+     * Notify of a change through both URIs (/my_downloads and /all_downloads),
+     * and unless it only changed progress, through
+     * {@link Constants#SCHEDULING_CONTENT_URI} so that {@link DownloadService}
+     * reconsiders what to run.
      * @param uri either URI for the changed download(s)
      * @param uriMatch the match ID from {@link #sURIMatcher}
+     * @param change one of the CHANGE_* constants
      */
-    private void notifyContentChanged(final Uri uri, int uriMatch) {
+    private void notifyContentChanged(final Uri uri, int uriMatch, String change) {
         Long downloadId = null;
         if (uriMatch == MY_DOWNLOADS_ID || uriMatch == ALL_DOWNLOADS_ID) {
             downloadId = Long.parseLong(getDownloadIdFromUri(uri));
@@ -1108,6 +1333,10 @@ public final class DownloadProvider extends ContentProvider {
             }
             getContext().getContentResolver().notifyChange(uriToNotify, null);
         }
+        if (!CHANGE_PROGRESS.equals(change)) {
+            getContext().getContentResolver().notifyChange(
+                    Uri.withAppendedPath(Constants.SCHEDULING_CONTENT_URI, change), null);
+        }
     }
 
     private SqlSelection getWhereClause(final Uri uri, final String where, final String[] whereArgs,
@@ -1148,13 +1377,16 @@ public final class DownloadProvider extends ContentProvider {
                 SqlSelection selection = getWhereClause(uri, where, whereArgs, match);
                 deleteRequestHeaders(db, selection.getSelection(), selection.getParameters());
                 count = db.delete(DB_TABLE, selection.getSelection(), selection.getParameters());
+                if (count > 0) {
+                    mDeleteCount.incrementAndGet();
+                }
                 break;
 
             default:
                 Log.d(Constants.TAG, "deleting unknown/invalid URI: " + uri);
                 throw new UnsupportedOperationException("Cannot delete URI: " + uri);
         }
-        notifyContentChanged(uri, match);
+        notifyContentChanged(uri, match, CHANGE_DELETE);
         return count;
     }
 
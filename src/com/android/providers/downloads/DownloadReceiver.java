@@ -68,22 +68,23 @@ public class DownloadReceiver extends BroadcastReceiver {
                 Log.v(Constants.TAG, "Received broadcast intent for " +
                         Intent.ACTION_BOOT_COMPLETED);
             }
-            startService(context);
+            startService(context, DownloadService.REASON_ALL);
         } else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
             if (Constants.LOGVV) {
                 Log.v(Constants.TAG, "Received broadcast intent for " +
                         Intent.ACTION_MEDIA_MOUNTED);
             }
-            startService(context);
+            startService(context, DownloadService.REASON_MEDIA_MOUNTED);
         } else if (action.equals(ConnectivityManager.CONNECTIVITY_ACTION)) {
+            NetworkSnapshotCache.invalidateActive();
             final ConnectivityManager connManager = (ConnectivityManager) context
                     .getSystemService(Context.CONNECTIVITY_SERVICE);
             final NetworkInfo info = connManager.getActiveNetworkInfo();
             if (info != null && info.isConnected()) {
-                startService(context);
+                startService(context, DownloadService.REASON_CONNECTIVITY);
             }
         } else if (action.equals(Constants.ACTION_RETRY)) {
-            startService(context);
+            startService(context, DownloadService.REASON_RETRY);
         } else if (action.equals(Constants.ACTION_OPEN)
                 || action.equals(Constants.ACTION_LIST)
                 || action.equals(Constants.ACTION_HIDE)) {
@@ -236,7 +237,7 @@ public class DownloadReceiver extends BroadcastReceiver {
         return cursor.getInt(cursor.getColumnIndexOrThrow(col));
     }
 
-    private void startService(Context context) {
-        context.startService(new Intent(context, DownloadService.class));
+    private void startService(Context context, int reason) {
+        context.startService(DownloadService.buildStartIntent(context, reason));
     }
 }
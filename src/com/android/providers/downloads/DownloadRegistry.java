@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.provider.Downloads;
+import android.util.LongSparseArray;
+
+import com.android.internal.util.IndentingPrintWriter;
+import com.google.android.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory downloads known to {@link DownloadService}, keyed by ID and
+ * indexed by what each one is waiting for, so an update pass only visits
+ * downloads that could make progress. Completed downloads sit in buckets
+ * that passes never walk.
+ * <p>
+ * Buckets are derived from in-memory state, so callers must
+ * {@link #put(DownloadInfo, long)} a download again after changing it.
+ * Not thread safe; callers must provide their own locking.
+ */
+public class DownloadRegistry {
+
+    /** Pending, running, paused, or waiting on storage */
+    public static final int BUCKET_RUNNABLE = 0;
+    /** Waiting for a usable network */
+    public static final int BUCKET_WAITING_FOR_NETWORK = 1;
+    /** Waiting for a retry time still in the future */
+    public static final int BUCKET_WAITING_TO_RETRY = 2;
+    /** Completed, but not yet scanned */
+    public static final int BUCKET_SCANNING = 3;
+    /** Completed with a notification still visible */
+    public static final int BUCKET_COMPLETED_VISIBLE = 4;
+    /** Completed with nothing left to do */
+    public static final int BUCKET_COMPLETED = 5;
+
+    private static final int BUCKET_COUNT = 6;
+
+    private final LongSparseArray<DownloadInfo> mDownloads = new LongSparseArray<DownloadInfo>();
+    private final LongSparseArray<Integer> mBucketOf = new LongSparseArray<Integer>();
+    private final LongSparseArray<DownloadInfo>[] mBuckets;
+
+    private final RetryQueue mRetries = new RetryQueue();
+
+    @SuppressWarnings("unchecked")
+    public DownloadRegistry() {
+        mBuckets = new LongSparseArray[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = new LongSparseArray<DownloadInfo>();
+        }
+    }
+
+    public int size() {
+        return mDownloads.size();
+    }
+
+    public DownloadInfo get(long id) {
+        return mDownloads.get(id);
+    }
+
+    /**
+     * Returns the IDs of all downloads, in ascending order.
+     */
+    public long[] getIds() {
+        final long[] ids = new long[mDownloads.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mDownloads.keyAt(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Add the given download, or move it to the bucket matching its current
+     * state.
+     */
+    public void put(DownloadInfo info, long now) {
+        final long id = info.mId;
+        mDownloads.put(id, info);
+
+        final int bucket = classify(info, now);
+        final Integer previous = mBucketOf.get(id);
+        if (previous != null && previous != bucket) {
+            mBuckets[previous].remove(id);
+        }
+        mBuckets[bucket].put(id, info);
+        mBucketOf.put(id, bucket);
+    }
+
+    public DownloadInfo remove(long id) {
+        final DownloadInfo info = mDownloads.get(id);
+        if (info == null) {
+            return null;
+        }
+        mDownloads.remove(id);
+        mBuckets[mBucketOf.get(id)].remove(id);
+        mBucketOf.remove(id);
+        mRetries.remove(id);
+        return info;
+    }
+
+    /**
+     * Returns a snapshot of the downloads in the given bucket, safe to
+     * {@link #put(DownloadInfo, long)} while iterating.
+     */
+    public List<DownloadInfo> getBucket(int bucket) {
+        final ArrayList<DownloadInfo> result = Lists.newArrayList();
+        addBucket(bucket, result);
+        return result;
+    }
+
+    /**
+     * Returns downloads that could have a notification showing, which is
+     * everything except completed downloads already dismissed or hidden.
+     */
+    public List<DownloadInfo> getNotifiable() {
+        final ArrayList<DownloadInfo> result = Lists.newArrayList();
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            if (bucket != BUCKET_COMPLETED) {
+                addBucket(bucket, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Move downloads whose retry time has arrived out of
+     * {@link #BUCKET_WAITING_TO_RETRY}.
+     *
+     * @return the downloads moved.
+     */
+    public List<DownloadInfo> pollDueRetries(long now) {
+        final ArrayList<DownloadInfo> due = Lists.newArrayList();
+        while (mRetries.peekDeadline() <= now) {
+            final DownloadInfo info = mDownloads.get(mRetries.poll());
+            put(info, now);
+            due.add(info);
+        }
+        return due;
+    }
+
+    /**
+     * Returns the earliest retry time, or {@link Long#MAX_VALUE} when no
+     * download is waiting to retry.
+     */
+    public long getNextRetry() {
+        return mRetries.peekDeadline();
+    }
+
+    private void addBucket(int bucket, List<DownloadInfo> result) {
+        final LongSparseArray<DownloadInfo> downloads = mBuckets[bucket];
+        final int size = downloads.size();
+        for (int i = 0; i < size; i++) {
+            result.add(downloads.valueAt(i));
+        }
+    }
+
+    private int classify(DownloadInfo info, long now) {
+        final int status = info.mStatus;
+        if (status == Downloads.Impl.STATUS_WAITING_TO_RETRY) {
+            final long when = info.restartTime(now);
+            if (when > now) {
+                mRetries.schedule(info.mId, when);
+                return BUCKET_WAITING_TO_RETRY;
+            }
+        }
+        mRetries.remove(info.mId);
+
+        // counted as completed, but restarts once media is mounted, so it
+        // has to be looked at on every pass
+        if (status == Downloads.Impl.STATUS_DEVICE_NOT_FOUND_ERROR) {
+            return BUCKET_RUNNABLE;
+        }
+        if (Downloads.Impl.isStatusCompleted(status)) {
+            if (info.shouldScanFile()) {
+                return BUCKET_SCANNING;
+            } else if (info.hasCompletionNotification()) {
+                return BUCKET_COMPLETED_VISIBLE;
+            } else {
+                return BUCKET_COMPLETED;
+            }
+        }
+        switch (status) {
+            case Downloads.Impl.STATUS_WAITING_FOR_NETWORK:
+            case Downloads.Impl.STATUS_QUEUED_FOR_WIFI:
+                return BUCKET_WAITING_FOR_NETWORK;
+            default:
+                return BUCKET_RUNNABLE;
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("DownloadRegistry:");
+        pw.increaseIndent();
+        pw.printPair("runnable", mBuckets[BUCKET_RUNNABLE].size());
+        pw.printPair("waitingForNetwork", mBuckets[BUCKET_WAITING_FOR_NETWORK].size());
+        pw.printPair("waitingToRetry", mBuckets[BUCKET_WAITING_TO_RETRY].size());
+        pw.printPair("scanning", mBuckets[BUCKET_SCANNING].size());
+        pw.printPair("completedVisible", mBuckets[BUCKET_COMPLETED_VISIBLE].size());
+        pw.printPair("completed", mBuckets[BUCKET_COMPLETED].size());
+        pw.printPair("nextRetry", mRetries.peekDeadline());
+        pw.println();
+        pw.decreaseIndent();
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.TAG;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor for {@link DownloadThread} that runs higher priority classes
+ * first, as defined by {@link DownloadInfo#getPriorityClass()}.
+ * <p>
+ * Queued downloads are ordered by when they were first enqueued, with lower
+ * classes penalized by {@link Constants#SCHEDULER_AGING_STEP} per class. A
+ * low priority download that has waited long enough therefore ages past newer
+ * high priority work and can't starve. When a higher class is waiting and
+ * every thread is busy, the lowest class running download is asked to yield
+ * at its next resumable point; it keeps its original enqueue time when it
+ * returns to the queue.
+ * <p>
+ * Within a class, each host and UID advances its own virtual clock by
+ * {@link Constants#SCHEDULER_FAIR_QUANTUM} per queued download, so a burst
+ * from one source is interleaved round-robin with work from others. Only
+ * {@link Constants#MAX_DOWNLOADS_PER_HOST} downloads per host are handed to
+ * the thread pool at once; the rest are parked, as is all work for a host
+ * that recently answered {@link java.net.HttpURLConnection#HTTP_UNAVAILABLE},
+ * leaving threads free for other hosts.
+ */
+public class DownloadScheduler extends ThreadPoolExecutor {
+
+    /** Downloads visible to the user, or explicitly raised by the app. */
+    public static final int PRIORITY_FOREGROUND = 0;
+    /** Downloads only shown once complete. */
+    public static final int PRIORITY_NORMAL = 1;
+    /** Hidden downloads, such as prefetching, or explicitly lowered by the app. */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int PRIORITY_CLASSES = 3;
+
+    private static final String[] PRIORITY_NAMES = { "foreground", "normal", "background" };
+
+    @GuardedBy("mRunning")
+    private final HashSet<ScheduledDownload<?>> mRunning = Sets.newHashSet();
+
+    private final int mMaxPerHost;
+
+    /** Admission state for each host with queued, running or backing off work. */
+    @GuardedBy("mHosts")
+    private final HashMap<String, HostState> mHosts = Maps.newHashMap();
+
+    /** Virtual finish time of the latest queued download from each host. */
+    @GuardedBy("mHosts")
+    private final HashMap<String, Long> mHostClocks = Maps.newHashMap();
+    /** Virtual finish time of the latest queued download from each UID. */
+    @GuardedBy("mHosts")
+    private final HashMap<Integer, Long> mUidClocks = Maps.newHashMap();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mPromoteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            promote();
+        }
+    };
+
+    private final AtomicLong[] mWaitCount = new AtomicLong[PRIORITY_CLASSES];
+    private final AtomicLong[] mWaitTotal = new AtomicLong[PRIORITY_CLASSES];
+    private final AtomicLong[] mWaitMax = new AtomicLong[PRIORITY_CLASSES];
+
+    public DownloadScheduler(int maxConcurrent, int maxPerHost) {
+        super(maxConcurrent, maxConcurrent, 10, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        allowCoreThreadTimeOut(true);
+        mMaxPerHost = maxPerHost;
+
+        for (int i = 0; i < PRIORITY_CLASSES; i++) {
+            mWaitCount[i] = new AtomicLong();
+            mWaitTotal[i] = new AtomicLong();
+            mWaitMax[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Download waiting in, or running from, this scheduler.
+     */
+    private static class ScheduledDownload<T> extends FutureTask<T>
+            implements Comparable<ScheduledDownload<?>> {
+        private final DownloadThread mThread;
+        private final int mPriorityClass;
+        private final int mUid;
+        private final String mHost;
+        /** When first queued, kept across a requeue after being preempted. */
+        private final long mEnqueueTime;
+        /** When handed to this scheduler for the current run. */
+        private final long mSubmitTime;
+
+        private long mSortKey;
+        private long mStartTime;
+
+        public ScheduledDownload(Runnable runnable, T value) {
+            super(runnable, value);
+            mThread = (runnable instanceof DownloadThread) ? (DownloadThread) runnable : null;
+            mPriorityClass = (mThread != null) ? mThread.getPriorityClass() : PRIORITY_NORMAL;
+            mUid = (mThread != null) ? mThread.getUid() : -1;
+            mHost = getHostKey(mThread);
+            mSubmitTime = SystemClock.elapsedRealtime();
+            final long enqueueTime = (mThread != null) ? mThread.getEnqueueTime() : 0;
+            mEnqueueTime = (enqueueTime > 0) ? enqueueTime : mSubmitTime;
+        }
+
+        /**
+         * Returns the key used to limit and backoff the host of the given
+         * download. Downloads without a usable host are keyed by their own
+         * ID, since they share no server with anything else.
+         */
+        private static String getHostKey(DownloadThread thread) {
+            if (thread == null) return "";
+            final String host = thread.getHost();
+            if (TextUtils.isEmpty(host)) {
+                return "#" + thread.getDownloadId();
+            }
+            return host;
+        }
+
+        @Override
+        public int compareTo(ScheduledDownload<?> another) {
+            return (mSortKey < another.mSortKey) ? -1 : (mSortKey > another.mSortKey ? 1 : 0);
+        }
+    }
+
+    /**
+     * Downloads waiting for, or dispatched to, a single host.
+     */
+    private static class HostState {
+        /** Downloads handed to the thread pool, either queued or running. */
+        public int mDispatched;
+        /** Downloads held back until the host has capacity. */
+        public final PriorityQueue<ScheduledDownload<?>> mParked =
+                new PriorityQueue<ScheduledDownload<?>>();
+        /** Time when the host may be contacted again after being unavailable. */
+        public long mBackoffUntil;
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        final ScheduledDownload<T> task = new ScheduledDownload<T>(runnable, value);
+        synchronized (mHosts) {
+            task.mSortKey = nextSortKeyLocked(task);
+        }
+        return task;
+    }
+
+    /**
+     * Advance the virtual clocks of the host and UID of the given download,
+     * returning its position in the queue.
+     */
+    private long nextSortKeyLocked(ScheduledDownload<?> task) {
+        pruneClocksLocked(mHostClocks, task.mSubmitTime);
+        pruneClocksLocked(mUidClocks, task.mSubmitTime);
+
+        long start = task.mEnqueueTime;
+        final Long hostClock = mHostClocks.get(task.mHost);
+        if (hostClock != null) start = Math.max(start, hostClock);
+        final Long uidClock = mUidClocks.get(task.mUid);
+        if (uidClock != null) start = Math.max(start, uidClock);
+
+        final long finish = start + Constants.SCHEDULER_FAIR_QUANTUM;
+        mHostClocks.put(task.mHost, finish);
+        mUidClocks.put(task.mUid, finish);
+        return finish + task.mPriorityClass * Constants.SCHEDULER_AGING_STEP;
+    }
+
+    private static <K> void pruneClocksLocked(HashMap<K, Long> clocks, long now) {
+        final Iterator<Long> it = clocks.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command instanceof ScheduledDownload) {
+            final ScheduledDownload<?> task = (ScheduledDownload<?>) command;
+            synchronized (mHosts) {
+                HostState host = mHosts.get(task.mHost);
+                if (host == null) {
+                    host = new HostState();
+                    mHosts.put(task.mHost, host);
+                }
+                final long now = SystemClock.elapsedRealtime();
+                if (host.mDispatched >= mMaxPerHost || host.mBackoffUntil > now) {
+                    if (Constants.LOGV) {
+                        Log.v(TAG, "Parking download while host is saturated or backing off");
+                    }
+                    host.mParked.add(task);
+                    if (host.mBackoffUntil > now) {
+                        mHandler.postDelayed(mPromoteRunnable, host.mBackoffUntil - now);
+                    }
+                    return;
+                }
+                host.mDispatched++;
+            }
+        }
+
+        super.execute(command);
+        maybePreempt();
+    }
+
+    /**
+     * Dispatch any parked downloads whose host now has capacity.
+     */
+    private void promote() {
+        final ArrayList<ScheduledDownload<?>> promoted = Lists.newArrayList();
+        synchronized (mHosts) {
+            final long now = SystemClock.elapsedRealtime();
+            long nextBackoff = Long.MAX_VALUE;
+
+            final Iterator<HostState> it = mHosts.values().iterator();
+            while (it.hasNext()) {
+                final HostState host = it.next();
+                if (host.mBackoffUntil > now) {
+                    if (!host.mParked.isEmpty()) {
+                        nextBackoff = Math.min(nextBackoff, host.mBackoffUntil);
+                    }
+                    continue;
+                }
+                while (host.mDispatched < mMaxPerHost && !host.mParked.isEmpty()) {
+                    promoted.add(host.mParked.poll());
+                    host.mDispatched++;
+                }
+                if (host.mDispatched == 0 && host.mParked.isEmpty()) {
+                    it.remove();
+                }
+            }
+
+            mHandler.removeCallbacks(mPromoteRunnable);
+            if (nextBackoff != Long.MAX_VALUE) {
+                mHandler.postDelayed(mPromoteRunnable, nextBackoff - now);
+            }
+        }
+
+        for (ScheduledDownload<?> task : promoted) {
+            super.execute(task);
+        }
+        if (!promoted.isEmpty()) {
+            maybePreempt();
+        }
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        final ScheduledDownload<?> task = (ScheduledDownload<?>) r;
+        task.mStartTime = SystemClock.elapsedRealtime();
+
+        final int priorityClass = task.mPriorityClass;
+        final long wait = task.mStartTime - task.mSubmitTime;
+        mWaitCount[priorityClass].incrementAndGet();
+        mWaitTotal[priorityClass].addAndGet(wait);
+        long max;
+        while ((max = mWaitMax[priorityClass].get()) < wait) {
+            if (mWaitMax[priorityClass].compareAndSet(max, wait)) break;
+        }
+
+        synchronized (mRunning) {
+            mRunning.add(task);
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        final ScheduledDownload<?> task = (ScheduledDownload<?>) r;
+        synchronized (mRunning) {
+            mRunning.remove(task);
+        }
+
+        synchronized (mHosts) {
+            final HostState host = mHosts.get(task.mHost);
+            if (host != null) {
+                host.mDispatched--;
+                final long backoff = (task.mThread != null) ? task.mThread.getServerBackoff() : 0;
+                if (backoff > 0) {
+                    host.mBackoffUntil = Math.max(host.mBackoffUntil,
+                            SystemClock.elapsedRealtime() + backoff);
+                }
+            }
+        }
+        promote();
+    }
+
+    /**
+     * When every thread is busy and a waiting download outranks a running
+     * one, ask the lowest ranked running download to yield.
+     */
+    private void maybePreempt() {
+        final ScheduledDownload<?> waiting = (ScheduledDownload<?>) getQueue().peek();
+        if (waiting == null) return;
+
+        synchronized (mRunning) {
+            if (mRunning.size() < getMaximumPoolSize()) return;
+
+            ScheduledDownload<?> victim = null;
+            for (ScheduledDownload<?> running : mRunning) {
+                if (running.mThread == null || running.mThread.isPreempted()) continue;
+                if (running.mPriorityClass <= waiting.mPriorityClass) continue;
+                if (victim == null || running.mPriorityClass > victim.mPriorityClass
+                        || (running.mPriorityClass == victim.mPriorityClass
+                                && running.mStartTime > victim.mStartTime)) {
+                    victim = running;
+                }
+            }
+
+            if (victim != null) {
+                if (Constants.LOGV) {
+                    Log.v(TAG, "Preempting " + PRIORITY_NAMES[victim.mPriorityClass]
+                            + " download for waiting " + PRIORITY_NAMES[waiting.mPriorityClass]);
+                }
+                victim.mThread.preempt();
+            }
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("DownloadScheduler:");
+        pw.increaseIndent();
+        pw.printPair("queued", getQueue().size());
+        pw.printPair("active", getActiveCount());
+        pw.println();
+        synchronized (mHosts) {
+            final long now = SystemClock.elapsedRealtime();
+            for (Map.Entry<String, HostState> entry : mHosts.entrySet()) {
+                final HostState host = entry.getValue();
+                pw.print("host " + entry.getKey());
+                pw.print(": ");
+                pw.printPair("dispatched", host.mDispatched);
+                pw.printPair("parked", host.mParked.size());
+                pw.printPair("backoffMillis", Math.max(0, host.mBackoffUntil - now));
+                pw.println();
+            }
+        }
+        for (int i = 0; i < PRIORITY_CLASSES; i++) {
+            final long count = mWaitCount[i].get();
+            pw.print(PRIORITY_NAMES[i]);
+            pw.print(": ");
+            pw.printPair("started", count);
+            pw.printPair("avgWaitMillis", count > 0 ? mWaitTotal[i].get() / count : 0);
+            pw.printPair("maxWaitMillis", mWaitMax[i].get());
+            pw.println();
+        }
+        pw.decreaseIndent();
+    }
+}
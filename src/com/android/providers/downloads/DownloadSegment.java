@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.text.TextUtils;
+
+/**
+ * Byte range of a download that is fetched over its own connection, along
+ * with how much of that range has been written to the destination file.
+ * Ranges are half-open, covering {@code [start, end)}.
+ */
+class DownloadSegment {
+    public final long start;
+    public final long end;
+
+    /** Bytes written so far; only advanced by the thread fetching this range. */
+    private volatile long mCurrent;
+
+    public DownloadSegment(long start, long end, long current) {
+        this.start = start;
+        this.end = end;
+        mCurrent = current;
+    }
+
+    public long getCurrent() {
+        return mCurrent;
+    }
+
+    /**
+     * Return the absolute file offset where the next byte of this segment
+     * should be written.
+     */
+    public long getPosition() {
+        return start + mCurrent;
+    }
+
+    public long getRemaining() {
+        return end - start - mCurrent;
+    }
+
+    public boolean isComplete() {
+        return getRemaining() == 0;
+    }
+
+    public void advance(long bytes) {
+        mCurrent += bytes;
+    }
+
+    /**
+     * Split the given length into evenly sized segments.
+     */
+    public static DownloadSegment[] split(long length, int count) {
+        final DownloadSegment[] segments = new DownloadSegment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new DownloadSegment(length * i / count, length * (i + 1) / count, 0);
+        }
+        return segments;
+    }
+
+    /**
+     * Return total bytes written across all given segments.
+     */
+    public static long sumCurrent(DownloadSegment[] segments) {
+        long sum = 0;
+        for (DownloadSegment segment : segments) {
+            sum += segment.getCurrent();
+        }
+        return sum;
+    }
+
+    /**
+     * Format segments for persisting in {@link Constants#SEGMENTS}, in the
+     * form {@code start-end:current,start-end:current}.
+     */
+    public static String format(DownloadSegment[] segments) {
+        final StringBuilder builder = new StringBuilder();
+        for (DownloadSegment segment : segments) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(segment.start).append('-').append(segment.end);
+            builder.append(':').append(segment.getCurrent());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Parse segments previously written by {@link #format(DownloadSegment[])}.
+     *
+     * @return parsed segments, or {@code null} if the value is malformed.
+     */
+    public static DownloadSegment[] parse(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return null;
+        }
+        final String[] parts = value.split(",");
+        final DownloadSegment[] segments = new DownloadSegment[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                final int dash = parts[i].indexOf('-');
+                final int colon = parts[i].indexOf(':');
+                if (dash < 0 || colon < dash) {
+                    return null;
+                }
+                final long start = Long.parseLong(parts[i].substring(0, dash));
+                final long end = Long.parseLong(parts[i].substring(dash + 1, colon));
+                final long current = Long.parseLong(parts[i].substring(colon + 1));
+                if (start > end || current < 0 || current > end - start) {
+                    return null;
+                }
+                segments[i] = new DownloadSegment(start, end, current);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return segments;
+    }
+}
@@ -24,40 +24,36 @@ import android.app.DownloadManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Process;
 import android.provider.Downloads;
+import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.IndentingPrintWriter;
-import com.google.android.collect.Maps;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Performs background downloads as requested by applications that use
@@ -74,18 +70,53 @@ public class DownloadService extends Service {
 
     private static final boolean DEBUG_LIFECYCLE = false;
 
+    /** Extra of a start intent carrying the {@code REASON_*} it was sent for */
+    static final String EXTRA_UPDATE_REASON = "update_reason";
+
+    /** Rows changed in the provider; only those rows need reading back */
+    static final int REASON_PROVIDER_CHANGED = 1;
+    /** Network connectivity changed */
+    static final int REASON_CONNECTIVITY = 1 << 1;
+    /** Alarm for the earliest retry went off */
+    static final int REASON_RETRY = 1 << 2;
+    /** External media was mounted */
+    static final int REASON_MEDIA_MOUNTED = 1 << 3;
+    /** A shared transfer finished, releasing downloads parked following it */
+    static final int REASON_TRANSFER_FINISHED = 1 << 4;
+    /** Anything else, such as boot */
+    static final int REASON_OTHER = 1 << 5;
+    /** Re-evaluate every download, used when the reason isn't known */
+    static final int REASON_ALL = REASON_PROVIDER_CHANGED | REASON_CONNECTIVITY | REASON_RETRY
+            | REASON_MEDIA_MOUNTED | REASON_TRANSFER_FINISHED | REASON_OTHER;
+
     @VisibleForTesting
     SystemFacade mSystemFacade;
 
     private AlarmManager mAlarmManager;
     private StorageManager mStorageManager;
 
-    /** Observer to get notified when the content observer's data changes */
+    /** Observer to get notified when changes may affect scheduling */
     private DownloadManagerContentObserver mObserver;
+    /** Observer of every change, including progress, to refresh notifications */
+    private ContentObserver mProgressObserver;
 
     /** Class to handle Notification Manager updates */
     private DownloadNotifier mNotifier;
 
+    /** Keep-alive connections shared across all downloads */
+    private KeepAliveTransport mTransport;
+
+    /** Bandwidth budgets shared across all downloads */
+    private BandwidthLimiter mLimiter;
+    private ContentObserver mLimitObserver;
+
+    /** Transfers shared by identical downloads */
+    private TransferCoalescer mCoalescer;
+
+    /** Progress of running downloads, persisted together */
+    private ProgressAggregator mProgress;
+    private NetworkSnapshotCache mNetworks;
+
     /**
      * The Service's view of the list of downloads, mapping download IDs to the corresponding info
      * object. This is kept independently from the content provider, and the Service only initiates
@@ -93,21 +124,18 @@ public class DownloadService extends Service {
      * content provider changes or disappears.
      */
     @GuardedBy("mDownloads")
-    private final Map<Long, DownloadInfo> mDownloads = Maps.newHashMap();
+    private final DownloadRegistry mDownloads = new DownloadRegistry();
 
-    private final ExecutorService mExecutor = buildDownloadExecutor();
+    private final DownloadScheduler mExecutor = buildDownloadExecutor();
 
-    private static ExecutorService buildDownloadExecutor() {
+    private static DownloadScheduler buildDownloadExecutor() {
         final int maxConcurrent = Resources.getSystem().getInteger(
                 com.android.internal.R.integer.config_MaxConcurrentDownloadsAllowed);
 
         // Create a bounded thread pool for executing downloads; it creates
-        // threads as needed (up to maximum) and reclaims them when finished.
-        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
-                maxConcurrent, maxConcurrent, 10, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>());
-        executor.allowCoreThreadTimeOut(true);
-        return executor;
+        // threads as needed (up to maximum) and reclaims them when finished,
+        // running queued downloads in priority order.
+        return new DownloadScheduler(maxConcurrent, Constants.MAX_DOWNLOADS_PER_HOST);
     }
 
     private DownloadScanner mScanner;
@@ -117,6 +145,23 @@ public class DownloadService extends Service {
 
     private volatile int mLastStartId;
 
+    /** Reasons of update passes requested since the last one started */
+    private final AtomicInteger mPendingReasons = new AtomicInteger();
+
+    /** Latest {@link Constants#CHANGE_SEQ} read back, or -1 before the first pass */
+    @GuardedBy("mDownloads")
+    private long mLastChangeSeq = -1;
+    /** Provider delete count expected if nobody else deleted rows */
+    @GuardedBy("mDownloads")
+    private long mLastDeleteCount = -1;
+    @GuardedBy("mDownloads")
+    private long mLastFullUpdate;
+
+    @GuardedBy("mDownloads")
+    private long mFullUpdates;
+    @GuardedBy("mDownloads")
+    private long mIncrementalUpdates;
+
     /**
      * Receives notifications when the data in the content provider changes
      */
@@ -127,7 +172,7 @@ public class DownloadService extends Service {
 
         @Override
         public void onChange(final boolean selfChange) {
-            enqueueUpdate();
+            enqueueUpdate(REASON_PROVIDER_CHANGED);
         }
     }
 
@@ -168,9 +213,50 @@ public class DownloadService extends Service {
         mNotifier = new DownloadNotifier(this);
         mNotifier.cancelAll();
 
+        KeepAliveTransport.configurePlatformKeepAlive(Constants.MAX_IDLE_CONNECTIONS_PER_HOST);
+        mTransport = new KeepAliveTransport();
+
+        mCoalescer = new TransferCoalescer(new Runnable() {
+            @Override
+            public void run() {
+                // restart downloads that were parked following it
+                enqueueUpdate(REASON_TRANSFER_FINISHED);
+            }
+        });
+        mProgress = new ProgressAggregator(
+                this, mUpdateThread.getLooper(), Constants.PROGRESS_FLUSH_INTERVAL);
+
+        mNetworks = new NetworkSnapshotCache(mSystemFacade);
+        NetworkSnapshotCache.setActive(mNetworks);
+        ProgressAggregator.setActive(mProgress);
+
+        mLimiter = new BandwidthLimiter();
+        mLimiter.updateLimits(mSystemFacade);
+        mLimitObserver = new ContentObserver(mUpdateHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mLimiter.updateLimits(mSystemFacade);
+            }
+        };
+        for (String setting : new String[] { BandwidthLimiter.SETTING_GLOBAL_LIMIT,
+                BandwidthLimiter.SETTING_UID_LIMIT, BandwidthLimiter.SETTING_PACKAGE_LIMIT }) {
+            getContentResolver().registerContentObserver(
+                    Settings.Global.getUriFor(setting), false, mLimitObserver);
+        }
+
+        // Progress-only changes don't need an update pass; they're already
+        // held in memory and only need to reach notifications.
         mObserver = new DownloadManagerContentObserver();
-        getContentResolver().registerContentObserver(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+        getContentResolver().registerContentObserver(Constants.SCHEDULING_CONTENT_URI,
                 true, mObserver);
+        mProgressObserver = new ContentObserver(mUpdateHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                enqueueNotify();
+            }
+        };
+        getContentResolver().registerContentObserver(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                true, mProgressObserver);
     }
 
     @Override
@@ -180,14 +266,20 @@ public class DownloadService extends Service {
             Log.v(Constants.TAG, "Service onStart");
         }
         mLastStartId = startId;
-        enqueueUpdate();
+        enqueueUpdate(intent != null
+                ? intent.getIntExtra(EXTRA_UPDATE_REASON, REASON_ALL) : REASON_ALL);
         return returnValue;
     }
 
     @Override
     public void onDestroy() {
         getContentResolver().unregisterContentObserver(mObserver);
+        getContentResolver().unregisterContentObserver(mProgressObserver);
+        getContentResolver().unregisterContentObserver(mLimitObserver);
         mScanner.shutdown();
+        NetworkSnapshotCache.setActive(null);
+        ProgressAggregator.setActive(null);
+        mProgress.flush();
         mUpdateThread.quit();
         if (Constants.LOGVV) {
             Log.v(Constants.TAG, "Service onDestroy");
@@ -196,15 +288,29 @@ public class DownloadService extends Service {
     }
 
     /**
-     * Enqueue an {@link #updateLocked()} pass to occur in future.
+     * Build an intent that starts this service for the given reason.
      */
-    private void enqueueUpdate() {
+    static Intent buildStartIntent(Context context, int reason) {
+        final Intent intent = new Intent(context, DownloadService.class);
+        intent.putExtra(EXTRA_UPDATE_REASON, reason);
+        return intent;
+    }
+
+    /**
+     * Enqueue an {@link #updateLocked(int)} pass to occur in future. Reasons
+     * of requests made before the pass runs are combined.
+     */
+    private void enqueueUpdate(int reason) {
+        int pending;
+        do {
+            pending = mPendingReasons.get();
+        } while (!mPendingReasons.compareAndSet(pending, pending | reason));
         mUpdateHandler.removeMessages(MSG_UPDATE);
         mUpdateHandler.obtainMessage(MSG_UPDATE, mLastStartId, -1).sendToTarget();
     }
 
     /**
-     * Enqueue an {@link #updateLocked()} pass to occur after delay, usually to
+     * Enqueue an {@link #updateLocked(int)} pass to occur after delay, usually to
      * catch any finished operations that didn't trigger an update pass.
      */
     private void enqueueFinalUpdate() {
@@ -214,14 +320,31 @@ public class DownloadService extends Service {
                 5 * MINUTE_IN_MILLIS);
     }
 
+    /**
+     * Enqueue a refresh of user-visible notifications from in-memory state,
+     * without an {@link #updateLocked(int)} pass.
+     */
+    private void enqueueNotify() {
+        mUpdateHandler.removeMessages(MSG_NOTIFY);
+        mUpdateHandler.sendEmptyMessage(MSG_NOTIFY);
+    }
+
     private static final int MSG_UPDATE = 1;
     private static final int MSG_FINAL_UPDATE = 2;
+    private static final int MSG_NOTIFY = 3;
 
     private Handler.Callback mUpdateCallback = new Handler.Callback() {
         @Override
         public boolean handleMessage(Message msg) {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
+            if (msg.what == MSG_NOTIFY) {
+                synchronized (mDownloads) {
+                    mNotifier.updateWith(mDownloads.getNotifiable());
+                }
+                return true;
+            }
+
             final int startId = msg.arg1;
             if (DEBUG_LIFECYCLE) Log.v(TAG, "Updating for startId " + startId);
 
@@ -232,9 +355,15 @@ public class DownloadService extends Service {
             // TODO: switch to asking real tasks to derive active state
             // TODO: handle media scanner timeouts
 
+            // the final pass is a safety net, so it looks at everything
+            int reasons = mPendingReasons.getAndSet(0);
+            if (msg.what == MSG_FINAL_UPDATE) {
+                reasons = REASON_ALL;
+            }
+
             final boolean isActive;
             synchronized (mDownloads) {
-                isActive = updateLocked();
+                isActive = updateLocked(reasons);
             }
 
             if (msg.what == MSG_FINAL_UPDATE) {
@@ -269,7 +398,12 @@ public class DownloadService extends Service {
                 if (stopSelfResult(startId)) {
                     if (DEBUG_LIFECYCLE) Log.v(TAG, "Nothing left; stopped");
                     getContentResolver().unregisterContentObserver(mObserver);
+                    getContentResolver().unregisterContentObserver(mProgressObserver);
+                    getContentResolver().unregisterContentObserver(mLimitObserver);
                     mScanner.shutdown();
+                    NetworkSnapshotCache.setActive(null);
+                    ProgressAggregator.setActive(null);
+                    mProgress.flush();
                     mUpdateThread.quit();
                 }
             }
@@ -278,107 +412,213 @@ public class DownloadService extends Service {
         }
     };
 
+    /**
+     * Buckets that may hold unchanged downloads ready to start or scan, each
+     * with the update reasons that can make them so. Other buckets only
+     * change when their rows do.
+     */
+    private static final int[][] UNCHANGED_BUCKETS = {
+            { DownloadRegistry.BUCKET_RUNNABLE,
+                    REASON_MEDIA_MOUNTED | REASON_TRANSFER_FINISHED },
+            { DownloadRegistry.BUCKET_WAITING_FOR_NETWORK, REASON_CONNECTIVITY },
+            { DownloadRegistry.BUCKET_SCANNING, REASON_OTHER },
+    };
+
     /**
      * Update {@link #mDownloads} to match {@link DownloadProvider} state.
      * Depending on current download state it may enqueue {@link DownloadThread}
      * instances, request {@link DownloadScanner} scans, update user-visible
      * notifications, and/or schedule future actions with {@link AlarmManager}.
      * <p>
+     * Usually only rows stamped with a {@link Constants#CHANGE_SEQ} newer than
+     * the last pass are read back; other downloads are evaluated from their
+     * in-memory state. Every row is reconciled on the first pass, after rows
+     * are deleted, and every {@link Constants#FULL_UPDATE_INTERVAL}.
+     * Unchanged downloads are only re-evaluated in buckets the given reasons
+     * can affect, such as those waiting for network after a connectivity
+     * change.
+     * <p>
      * Should only be called from {@link #mUpdateThread} as after being
-     * requested through {@link #enqueueUpdate()}.
+     * requested through {@link #enqueueUpdate(int)}.
      *
      * @return If there are active tasks being processed, as of the database
      *         snapshot taken in this update.
      */
-    private boolean updateLocked() {
+    private boolean updateLocked(int reasons) {
         final long now = mSystemFacade.currentTimeMillis();
 
         boolean isActive = false;
-        long nextActionMillis = Long.MAX_VALUE;
 
-        final Set<Long> staleIds = Sets.newHashSet(mDownloads.keySet());
+        // Downloads checked below share one read of network state per UID
+        mNetworks.invalidate();
 
         final ContentResolver resolver = getContentResolver();
-        final Cursor cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
-                null, null, null, null);
-        try {
-            final DownloadInfo.Reader reader = new DownloadInfo.Reader(resolver, cursor);
-            final int idColumn = cursor.getColumnIndexOrThrow(Downloads.Impl._ID);
-            while (cursor.moveToNext()) {
-                final long id = cursor.getLong(idColumn);
-                staleIds.remove(id);
-
-                DownloadInfo info = mDownloads.get(id);
-                if (info != null) {
-                    updateDownload(reader, info, now);
-                } else {
-                    info = insertDownloadLocked(reader, now);
-                }
+        final Bundle changes = resolver.call(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                Constants.METHOD_GET_CHANGES, null, null);
+        final long changeSeq = changes.getLong(Constants.EXTRA_CHANGE_SEQ);
+        final long deleteCount = changes.getLong(Constants.EXTRA_DELETE_COUNT);
+
+        final boolean fullUpdate = mLastChangeSeq == -1 || deleteCount != mLastDeleteCount
+                || now - mLastFullUpdate >= Constants.FULL_UPDATE_INTERVAL
+                || now < mLastFullUpdate;
+        if (fullUpdate) {
+            mLastFullUpdate = now;
+            mFullUpdates++;
+        } else {
+            mIncrementalUpdates++;
+        }
 
-                if (info.mDeleted) {
-                    // Delete download if requested, but only after cleaning up
-                    if (!TextUtils.isEmpty(info.mMediaProviderUri)) {
-                        resolver.delete(Uri.parse(info.mMediaProviderUri), null, null);
+        final Set<Long> staleIds = fullUpdate ? Sets.<Long>newHashSet() : null;
+        if (fullUpdate) {
+            for (long id : mDownloads.getIds()) {
+                staleIds.add(id);
+            }
+        }
+        final Set<Long> seenIds = Sets.newHashSet();
+        long ownDeletes = 0;
+        // sequences are handed out inside write transactions, so everything
+        // up to the one just returned has already been committed
+        long lastChangeSeq = Math.max(mLastChangeSeq, changeSeq);
+
+        if (fullUpdate || changeSeq != mLastChangeSeq) {
+            final Cursor cursor;
+            if (fullUpdate) {
+                cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                        DownloadInfo.Reader.PROJECTION, null, null, null);
+            } else {
+                cursor = resolver.query(ContentUris.withAppendedId(
+                        Constants.CHANGED_DOWNLOADS_CONTENT_URI, mLastChangeSeq),
+                        DownloadInfo.Reader.PROJECTION, null, null, null);
+            }
+            try {
+                final DownloadInfo.Reader reader = new DownloadInfo.Reader(cursor);
+                while (cursor.moveToNext()) {
+                    final long id = reader.getId();
+                    lastChangeSeq = Math.max(lastChangeSeq, reader.getChangeSeq());
+                    seenIds.add(id);
+                    if (staleIds != null) {
+                        staleIds.remove(id);
                     }
 
-                    deleteFileIfExists(info.mFileName);
-                    resolver.delete(info.getAllDownloadsUri(), null, null);
-
-                } else {
-                    // Kick off download task if ready
-                    final boolean activeDownload = info.startDownloadIfReady(mExecutor);
-
-                    // Kick off media scan if completed
-                    final boolean activeScan = info.startScanIfReady(mScanner);
+                    DownloadInfo info = mDownloads.get(id);
+                    if (info != null) {
+                        updateDownload(reader, info, now);
+                    } else {
+                        info = insertDownloadLocked(reader, now);
+                    }
 
-                    if (DEBUG_LIFECYCLE && (activeDownload || activeScan)) {
-                        Log.v(TAG, "Download " + info.mId + ": activeDownload=" + activeDownload
-                                + ", activeScan=" + activeScan);
+                    if (info.mDeleted) {
+                        // Delete download if requested, but only after cleaning up
+                        if (!TextUtils.isEmpty(info.mMediaProviderUri)) {
+                            resolver.delete(Uri.parse(info.mMediaProviderUri), null, null);
+                        }
+
+                        deleteFileIfExists(info.mFileName);
+                        if (resolver.delete(info.getAllDownloadsUri(), null, null) > 0) {
+                            ownDeletes++;
+                        }
+                        deleteDownloadLocked(id);
+                        continue;
                     }
 
-                    isActive |= activeDownload;
-                    isActive |= activeScan;
+                    isActive |= startIfReadyLocked(info);
+                    mDownloads.put(info, now);
                 }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // Retries that have come due join the runnable bucket
+        for (DownloadInfo info : mDownloads.pollDueRetries(now)) {
+            if (seenIds.contains(info.mId)) continue;
+            seenIds.add(info.mId);
+            isActive |= startIfReadyLocked(info);
+            mDownloads.put(info, now);
+        }
 
-                // Keep track of nearest next action
-                nextActionMillis = Math.min(info.nextActionMillis(now), nextActionMillis);
+        // Unchanged downloads only become ready through the events that
+        // triggered this pass; other buckets are just checked for work that's
+        // still running, so the service isn't stopped underneath it.
+        for (int[] unchanged : UNCHANGED_BUCKETS) {
+            final boolean affected = (reasons & unchanged[1]) != 0;
+            for (DownloadInfo info : mDownloads.getBucket(unchanged[0])) {
+                if (seenIds.contains(info.mId)) continue;
+                if (affected) {
+                    isActive |= startIfReadyLocked(info);
+                    mDownloads.put(info, now);
+                } else if (unchanged[0] == DownloadRegistry.BUCKET_SCANNING) {
+                    isActive = true;
+                } else {
+                    isActive |= info.isActive();
+                }
             }
-        } finally {
-            cursor.close();
         }
 
         // Clean up stale downloads that disappeared
-        for (Long id : staleIds) {
-            deleteDownloadLocked(id);
+        if (staleIds != null) {
+            for (Long id : staleIds) {
+                deleteDownloadLocked(id);
+            }
+            // including those deleted before we ever loaded them
+            mStorageManager.getDownloadCache().retainDownloads(seenIds);
         }
 
+        // Deletes made by others since the provider call are caught by the
+        // next pass, since they won't match this count.
+        mLastChangeSeq = lastChangeSeq;
+        mLastDeleteCount = deleteCount + ownDeletes;
+
         // Update notifications visible to user
-        mNotifier.updateWith(mDownloads.values());
+        mNotifier.updateWith(mDownloads.getNotifiable());
 
-        // Set alarm when next action is in future. It's okay if the service
+        // Set alarm when next retry is in future. It's okay if the service
         // continues to run in meantime, since it will kick off an update pass.
-        if (nextActionMillis > 0 && nextActionMillis < Long.MAX_VALUE) {
+        final long nextRetry = mDownloads.getNextRetry();
+        if (nextRetry < Long.MAX_VALUE) {
+            final long nextActionMillis = nextRetry - now;
             if (Constants.LOGV) {
                 Log.v(TAG, "scheduling start in " + nextActionMillis + "ms");
             }
 
             final Intent intent = new Intent(Constants.ACTION_RETRY);
             intent.setClass(this, DownloadReceiver.class);
-            mAlarmManager.set(AlarmManager.RTC_WAKEUP, now + nextActionMillis,
+            mAlarmManager.set(AlarmManager.RTC_WAKEUP, nextRetry,
                     PendingIntent.getBroadcast(this, 0, intent, PendingIntent.FLAG_ONE_SHOT));
         }
 
         return isActive;
     }
 
+    /**
+     * Kick off download and media scan tasks for the given download, if
+     * ready.
+     *
+     * @return If the download has an active task.
+     */
+    private boolean startIfReadyLocked(DownloadInfo info) {
+        // Kick off download task if ready
+        final boolean activeDownload = info.startDownloadIfReady(mExecutor);
+
+        // Kick off media scan if completed
+        final boolean activeScan = info.startScanIfReady(mScanner);
+
+        if (DEBUG_LIFECYCLE && (activeDownload || activeScan)) {
+            Log.v(TAG, "Download " + info.mId + ": activeDownload=" + activeDownload
+                    + ", activeScan=" + activeScan);
+        }
+        return activeDownload || activeScan;
+    }
+
     /**
      * Keeps a local copy of the info about a download, and initiates the
      * download if appropriate.
      */
     private DownloadInfo insertDownloadLocked(DownloadInfo.Reader reader, long now) {
         final DownloadInfo info = reader.newDownloadInfo(
-                this, mSystemFacade, mStorageManager, mNotifier);
-        mDownloads.put(info.mId, info);
+                this, mSystemFacade, mStorageManager, mNotifier, mTransport, mLimiter,
+                mCoalescer, mProgress, mNetworks);
+        mDownloads.put(info, now);
 
         if (Constants.LOGVV) {
             Log.v(Constants.TAG, "processing inserted download " + info.mId);
@@ -412,6 +652,8 @@ public class DownloadService extends Service {
             }
             deleteFileIfExists(info.mFileName);
         }
+        mCoalescer.forget(info.mId);
+        mStorageManager.getDownloadCache().removeDownload(info.mId);
         mDownloads.remove(info.mId);
     }
 
@@ -431,12 +673,25 @@ public class DownloadService extends Service {
     protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
         final IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
         synchronized (mDownloads) {
-            final List<Long> ids = Lists.newArrayList(mDownloads.keySet());
-            Collections.sort(ids);
-            for (Long id : ids) {
+            for (long id : mDownloads.getIds()) {
                 final DownloadInfo info = mDownloads.get(id);
                 info.dump(pw);
             }
+            pw.println("Updates:");
+            pw.increaseIndent();
+            pw.printPair("full", mFullUpdates);
+            pw.printPair("incremental", mIncrementalUpdates);
+            pw.printPair("lastChangeSeq", mLastChangeSeq);
+            pw.println();
+            pw.decreaseIndent();
+            mDownloads.dump(pw);
         }
+        mTransport.dump(pw);
+        mLimiter.dump(pw);
+        mCoalescer.dump(pw);
+        mProgress.dump(pw);
+        mNetworks.dump(pw);
+        mStorageManager.getDownloadCache().dump(pw);
+        mExecutor.dump(pw);
     }
 }
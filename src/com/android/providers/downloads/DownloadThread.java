@@ -20,6 +20,7 @@ import static android.provider.Downloads.Impl.STATUS_BAD_REQUEST;
 import static android.provider.Downloads.Impl.STATUS_CANNOT_RESUME;
 import static android.provider.Downloads.Impl.STATUS_FILE_ERROR;
 import static android.provider.Downloads.Impl.STATUS_HTTP_DATA_ERROR;
+import static android.provider.Downloads.Impl.STATUS_INSUFFICIENT_SPACE_ERROR;
 import static android.provider.Downloads.Impl.STATUS_TOO_MANY_REDIRECTS;
 import static android.provider.Downloads.Impl.STATUS_WAITING_FOR_NETWORK;
 import static android.provider.Downloads.Impl.STATUS_WAITING_TO_RETRY;
@@ -28,6 +29,7 @@ import static com.android.providers.downloads.Constants.TAG;
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
 import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_PARTIAL;
 import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
@@ -56,17 +58,26 @@ import com.android.providers.downloads.DownloadInfo.NetworkState;
 
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import libcore.io.ErrnoException;
 import libcore.io.IoUtils;
+import libcore.io.Libcore;
+import libcore.io.OsConstants;
 
 /**
  * Task which executes a given {@link DownloadInfo}: making network requests,
@@ -82,21 +93,48 @@ public class DownloadThread implements Runnable {
 
     private static final int DEFAULT_TIMEOUT = (int) (20 * SECOND_IN_MILLIS);
 
+    /** Target time to fill a single read buffer at the measured speed. */
+    private static final long BUFFER_FILL_TIME = 125;
+
+    /** How often a throttled download checks for pause and cancel. */
+    private static final long THROTTLE_CHECK_INTERVAL = 500;
+
+    /** How often to collect progress from parallel segments. */
+    private static final long SEGMENT_POLL_INTERVAL = 500;
+
     private final Context mContext;
     private final DownloadInfo mInfo;
     private final SystemFacade mSystemFacade;
     private final StorageManager mStorageManager;
     private final DownloadNotifier mNotifier;
+    private final Transport mTransport;
+    private final BandwidthLimiter mLimiter;
+    private final TransferCoalescer mCoalescer;
+    private final ProgressAggregator mProgress;
 
     private volatile boolean mPolicyDirty;
 
+    /** Set when a higher priority download is waiting for our thread. */
+    private volatile boolean mPreempted;
+    /** Set once this download actually gave up its thread to be requeued. */
+    private volatile boolean mYielded;
+
+    /** How long the server asked us to stay away, when it was unavailable. */
+    private volatile long mServerBackoff;
+
     public DownloadThread(Context context, SystemFacade systemFacade, DownloadInfo info,
-            StorageManager storageManager, DownloadNotifier notifier) {
+            StorageManager storageManager, DownloadNotifier notifier,
+            Transport transport, BandwidthLimiter limiter, TransferCoalescer coalescer,
+            ProgressAggregator progress) {
         mContext = context;
         mSystemFacade = systemFacade;
         mInfo = info;
         mStorageManager = storageManager;
         mNotifier = notifier;
+        mTransport = transport;
+        mLimiter = limiter;
+        mCoalescer = coalescer;
+        mProgress = progress;
     }
 
     /**
@@ -110,11 +148,96 @@ public class DownloadThread implements Runnable {
         return userAgent;
     }
 
+    /**
+     * Source of connections used to make requests for a download. Callers
+     * must release every connection they open.
+     */
+    public interface Transport {
+        /**
+         * Open a connection to the given URL, which may share an underlying
+         * socket with earlier requests to the same origin.
+         */
+        public HttpURLConnection open(URL url) throws IOException;
+
+        /**
+         * Release a connection opened by {@link #open(URL)}.
+         *
+         * @param reusable if the response body was fully consumed and closed,
+         *            so the underlying socket can serve another request.
+         */
+        public void release(HttpURLConnection conn, boolean reusable);
+    }
+
+    public int getPriorityClass() {
+        return mInfo.getPriorityClass();
+    }
+
+    /**
+     * Ask this download to yield its thread at the next point where it can
+     * safely resume later.
+     */
+    public void preempt() {
+        mPreempted = true;
+    }
+
+    public boolean isPreempted() {
+        return mPreempted;
+    }
+
+    /**
+     * Returns if this download stopped only to yield its thread, and should
+     * keep its place in the queue when started again.
+     */
+    public boolean hasYielded() {
+        return mYielded;
+    }
+
+    /**
+     * Returns when this download first entered the queue, in
+     * {@link SystemClock#elapsedRealtime()} time.
+     */
+    public long getEnqueueTime() {
+        return mInfo.getEnqueueTime();
+    }
+
+    public long getDownloadId() {
+        return mInfo.mId;
+    }
+
+    public int getUid() {
+        return mInfo.mUid;
+    }
+
+    /**
+     * Returns the host this download was requested from, or {@code null} when
+     * the URI is malformed.
+     */
+    public String getHost() {
+        try {
+            return new URL(mInfo.mUri).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns how long the host should be left alone after it answered this
+     * download as unavailable, or 0 when it didn't.
+     */
+    public long getServerBackoff() {
+        return mServerBackoff;
+    }
+
     /**
      * State for the entire run() method.
      */
     static class State {
         public String mFilename;
+        /**
+         * If the destination was extended past what has been written, so its
+         * length says nothing about which bytes reached disk.
+         */
+        public boolean mPreallocated;
         public String mMimeType;
         public int mRetryAfter = 0;
         public boolean mGotData = false;
@@ -122,13 +245,18 @@ public class DownloadThread implements Runnable {
         public long mTotalBytes = -1;
         public long mCurrentBytes = 0;
         public String mHeaderETag;
+        public String mLastModified;
+        /** Cache-Control of the response, consulted before caching it. */
+        public String mCacheControl;
+        /** Encoding of data stored in destination file, or null when identity. */
+        public String mContentEncoding;
         public boolean mContinuingDownload = false;
         public long mBytesNotified = 0;
         public long mTimeLastNotification = 0;
         public int mNetworkType = ConnectivityManager.TYPE_NONE;
 
-        /** Historical bytes/second speed of this download. */
-        public long mSpeed;
+        /** Historical bytes/second speed of this download; read by segment workers. */
+        public volatile long mSpeed;
         /** Time when current sample started. */
         public long mSpeedSampleStart;
         /** Bytes transferred since current sample started. */
@@ -141,6 +269,23 @@ public class DownloadThread implements Runnable {
         public int mRedirectionCount;
         public URL mUrl;
 
+        /** Open destination file, synced before progress is persisted. */
+        public FileDescriptor mOutFd;
+
+        /** Byte ranges being fetched in parallel, or null when not segmented. */
+        public DownloadSegment[] mSegments;
+
+        /** Transfer that other downloads of this response are following. */
+        public TransferCoalescer.Transfer mSharedTransfer;
+
+        /** Cached response offered to the server for revalidation, if any. */
+        public DownloadCache.Entry mCacheEntry;
+        /** Set when the destination was materialized from the cache. */
+        public boolean mServedFromCache;
+
+        /** Running digest of data written, when an expected hash was given. */
+        public CheckpointedDigest mDigest;
+
         public State(DownloadInfo info) {
             mMimeType = Intent.normalizeMimeType(info.mMimeType);
             mRequestUri = info.mUri;
@@ -216,7 +361,10 @@ public class DownloadThread implements Runnable {
 
             executeDownload(state);
 
+            decodeDestinationFile(state);
+            verifyDigest(state);
             finalizeDestinationFile(state);
+            storeInCache(state);
             finalStatus = Downloads.Impl.STATUS_SUCCESS;
         } catch (StopRequestException error) {
             // remove the cause before printing, in case it contains PII
@@ -266,6 +414,11 @@ public class DownloadThread implements Runnable {
             TrafficStats.clearThreadStatsTag();
             TrafficStats.clearThreadStatsUid();
 
+            if (state.mSharedTransfer != null) {
+                mCoalescer.finish(state.mSharedTransfer,
+                        finalStatus == Downloads.Impl.STATUS_SUCCESS ? state.mFilename : null);
+            }
+
             cleanupDestination(state, finalStatus);
             notifyDownloadCompleted(state, finalStatus, errorMsg, numFailed);
 
@@ -288,6 +441,10 @@ public class DownloadThread implements Runnable {
      */
     private void executeDownload(State state) throws StopRequestException {
         state.resetBeforeExecute();
+        if (collectSharedTransfer(state)) {
+            // identical transfer finished while we were parked
+            return;
+        }
         setupDestinationFile(state);
 
         // skip when already finished; remove after fixing race in 5217390
@@ -297,13 +454,22 @@ public class DownloadThread implements Runnable {
             return;
         }
 
+        if (state.mSegments != null) {
+            // Resuming a segmented download; each segment follows redirects
+            // and validates ETag over its own connection.
+            checkConnectivity();
+            transferSegments(state, null);
+            return;
+        }
+
         while (state.mRedirectionCount++ < Constants.MAX_REDIRECTS) {
             // Open connection and follow any redirects until we have a useful
             // response with body.
             HttpURLConnection conn = null;
+            boolean reusable = false;
             try {
                 checkConnectivity();
-                conn = (HttpURLConnection) state.mUrl.openConnection();
+                conn = mTransport.open(state.mUrl);
                 conn.setInstanceFollowRedirects(false);
                 conn.setConnectTimeout(DEFAULT_TIMEOUT);
                 conn.setReadTimeout(DEFAULT_TIMEOUT);
@@ -317,8 +483,32 @@ public class DownloadThread implements Runnable {
                             throw new StopRequestException(
                                     STATUS_CANNOT_RESUME, "Expected partial, but received OK");
                         }
-                        processResponseHeaders(state, conn);
-                        transferData(state, conn);
+                        if (state.mCacheEntry != null) {
+                            mStorageManager.getDownloadCache().noteRevalidated(
+                                    state.mCacheEntry, false);
+                        }
+                        readResponseHeaders(state, conn);
+                        if (joinSharedTransfer(state)) {
+                            // identical transfer already running elsewhere, so
+                            // hang up and give back our thread until it's done;
+                            // our own file is only created once it finishes
+                            mTransport.release(conn, false);
+                            conn = null;
+                            updateDatabaseFromHeaders(state);
+                            throw new StopRequestException(
+                                    Downloads.Impl.STATUS_PENDING, "following shared transfer");
+                        }
+                        processResponseHeaders(state);
+                        // encoded bodies are verified once decoded
+                        state.mDigest = (mInfo.mExpectedHash != null
+                                && state.mContentEncoding == null) ? new CheckpointedDigest() : null;
+                        if (shouldSegment(state, conn)) {
+                            // first segment leaves rest of body unread
+                            transferSegments(state, conn);
+                        } else {
+                            transferData(state, conn);
+                            reusable = true;
+                        }
                         return;
 
                     case HTTP_PARTIAL:
@@ -326,7 +516,13 @@ public class DownloadThread implements Runnable {
                             throw new StopRequestException(
                                     STATUS_CANNOT_RESUME, "Expected OK, but received partial");
                         }
+                        if (!TextUtils.equals(state.mContentEncoding,
+                                normalizeContentEncoding(conn.getContentEncoding()))) {
+                            throw new StopRequestException(
+                                    STATUS_CANNOT_RESUME, "Content-Encoding changed");
+                        }
                         transferData(state, conn);
+                        reusable = true;
                         return;
 
                     case HTTP_MOVED_PERM:
@@ -339,14 +535,25 @@ public class DownloadThread implements Runnable {
                             // Push updated URL back to database
                             state.mRequestUri = state.mUrl.toString();
                         }
+                        reusable = KeepAliveTransport.drain(conn);
                         continue;
 
+                    case HTTP_NOT_MODIFIED:
+                        if (state.mCacheEntry == null) {
+                            StopRequestException.throwUnhandledHttpError(
+                                    responseCode, conn.getResponseMessage());
+                        }
+                        materializeCachedResponse(state);
+                        reusable = KeepAliveTransport.drain(conn);
+                        return;
+
                     case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
                         throw new StopRequestException(
                                 STATUS_CANNOT_RESUME, "Requested range not satisfiable");
 
                     case HTTP_UNAVAILABLE:
                         parseRetryAfterHeaders(state, conn);
+                        noteServerUnavailable(state.mRetryAfter);
                         throw new StopRequestException(
                                 HTTP_UNAVAILABLE, conn.getResponseMessage());
 
@@ -363,7 +570,7 @@ public class DownloadThread implements Runnable {
                 throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
 
             } finally {
-                if (conn != null) conn.disconnect();
+                if (conn != null) mTransport.release(conn, reusable);
             }
         }
 
@@ -376,8 +583,9 @@ public class DownloadThread implements Runnable {
     private void transferData(State state, HttpURLConnection conn) throws StopRequestException {
         DrmManagerClient drmClient = null;
         InputStream in = null;
-        OutputStream out = null;
-        FileDescriptor outFd = null;
+        DrmOutputStream drmOut = null;
+        RandomAccessFile file = null;
+        WritableByteChannel out = null;
         try {
             try {
                 in = conn.getInputStream();
@@ -386,15 +594,16 @@ public class DownloadThread implements Runnable {
             }
 
             try {
+                file = new RandomAccessFile(new File(state.mFilename), "rw");
                 if (DownloadDrmHelper.isDrmConvertNeeded(state.mMimeType)) {
                     drmClient = new DrmManagerClient(mContext);
-                    final RandomAccessFile file = new RandomAccessFile(
-                            new File(state.mFilename), "rw");
-                    out = new DrmOutputStream(drmClient, file, state.mMimeType);
-                    outFd = file.getFD();
+                    drmOut = new DrmOutputStream(drmClient, file, state.mMimeType);
+                    out = Channels.newChannel(drmOut);
                 } else {
-                    out = new FileOutputStream(state.mFilename, true);
-                    outFd = ((FileOutputStream) out).getFD();
+                    // Written positionally at current bytes, which picks up
+                    // where any resumed download left off.
+                    out = file.getChannel();
+                    state.mOutFd = file.getFD();
                 }
             } catch (IOException e) {
                 throw new StopRequestException(STATUS_FILE_ERROR, e);
@@ -405,14 +614,15 @@ public class DownloadThread implements Runnable {
             transferData(state, in, out);
 
             try {
-                if (out instanceof DrmOutputStream) {
-                    ((DrmOutputStream) out).finish();
+                if (drmOut != null) {
+                    drmOut.finish();
                 }
             } catch (IOException e) {
                 throw new StopRequestException(STATUS_FILE_ERROR, e);
             }
 
         } finally {
+            state.mOutFd = null;
             if (drmClient != null) {
                 drmClient.release();
             }
@@ -420,12 +630,102 @@ public class DownloadThread implements Runnable {
             IoUtils.closeQuietly(in);
 
             try {
-                if (out != null) out.flush();
-                if (outFd != null) outFd.sync();
+                if (drmOut != null) drmOut.flush();
+                if (file != null) file.getFD().sync();
             } catch (IOException e) {
             } finally {
                 IoUtils.closeQuietly(out);
+                IoUtils.closeQuietly(drmOut);
+                IoUtils.closeQuietly(file);
+            }
+        }
+    }
+
+    /**
+     * When another download is already transferring the same response,
+     * follow it instead of transferring our own copy. Otherwise start leading
+     * a transfer that later identical downloads can follow.
+     *
+     * @return if we are now following another transfer, and should stop
+     *         until it finishes.
+     */
+    private boolean joinSharedTransfer(State state) {
+        // only whole, unmodified responses can be shared byte for byte
+        if (mCoalescer == null || state.mContinuingDownload
+                || !Helpers.isStrongETag(state.mHeaderETag)
+                || state.mContentEncoding != null
+                || DownloadDrmHelper.isDrmConvertNeeded(state.mMimeType)) {
+            return false;
+        }
+
+        final TransferCoalescer.Transfer shared = mCoalescer.join(
+                mInfo.mId, state.mUrl.toString(), state.mHeaderETag, state.mContentLength);
+        if (shared.isLeader(mInfo.mId)) {
+            shared.setResponseHeaders(state.mContentDisposition, state.mContentLocation);
+            state.mSharedTransfer = shared;
+            return false;
+        }
+
+        Log.i(TAG, "Download " + mInfo.mId + " following transfer of download "
+                + shared.getLeaderId());
+        return true;
+    }
+
+    /**
+     * When we were parked following a transfer that has since finished,
+     * copy its file into our destination.
+     *
+     * @return if our destination now holds the complete response; when
+     *         false, the caller should request the response itself.
+     */
+    private boolean collectSharedTransfer(State state) throws StopRequestException {
+        if (mCoalescer == null) return false;
+        final TransferCoalescer.Transfer shared = mCoalescer.collect(mInfo.mId);
+        if (shared == null) return false;
+
+        final String source = shared.getFilename();
+        if (source == null || !new File(source).exists()) {
+            Log.i(TAG, "Shared transfer failed; download " + mInfo.mId
+                    + " continuing on its own");
+            return false;
+        }
+
+        if (state.mFilename == null) {
+            // we parked before choosing a file, so name it as the leader's
+            // response would have been named for us
+            state.mContentDisposition = shared.getContentDisposition();
+            state.mContentLocation = shared.getContentLocation();
+            state.mContentLength = shared.getLength();
+            state.mFilename = generateSaveFile(state);
+            updateDatabaseFromHeaders(state);
+        }
+
+        state.mCurrentBytes = copyToDestination(new File(source), state.mFilename);
+
+        ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, state.mCurrentBytes);
+        values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, state.mCurrentBytes);
+        updateDatabase(values);
+        return true;
+    }
+
+    /**
+     * Copy a complete local file, such as a finished shared transfer or
+     * cached response, over our destination.
+     *
+     * @return number of bytes copied.
+     */
+    private long copyToDestination(File source, String target) throws StopRequestException {
+        mStorageManager.verifySpace(mInfo.mDestination, target, source.length());
+        try {
+            return Helpers.copyFile(source, new File(target));
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new StopRequestException(STATUS_INSUFFICIENT_SPACE_ERROR, e);
             }
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
         }
     }
 
@@ -450,34 +750,510 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Check if the given response allows this download to be split into
+     * several byte ranges fetched in parallel.
+     */
+    private boolean shouldSegment(State state, HttpURLConnection conn) {
+        return state.mContentLength >= Constants.MIN_SEGMENTED_LENGTH
+                && state.mContentEncoding == null
+                && Helpers.isStrongETag(state.mHeaderETag)
+                && "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"))
+                && !DownloadDrmHelper.isDrmConvertNeeded(state.mMimeType)
+                && mInfo.mExpectedHash == null;
+    }
+
+    /**
+     * Transfer data over several parallel connections, each fetching a
+     * {@link DownloadSegment} and writing it at its offset in the destination
+     * file. When given, the already-open connection serves the first segment.
+     */
+    private void transferSegments(State state, HttpURLConnection firstConn)
+            throws StopRequestException {
+        if (state.mSegments == null) {
+            state.mSegments = DownloadSegment.split(
+                    state.mContentLength, Constants.MAX_SEGMENTS);
+        }
+
+        // Persist layout before fetching, so any resume picks up only the
+        // unfinished ranges.
+        persistSegments(state);
+
+        final RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(state.mFilename, "rw");
+            state.mOutFd = file.getFD();
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+
+        // All segments write positionally into a single shared channel
+        final FileChannel out = file.getChannel();
+        final SegmentGroup group = new SegmentGroup();
+        try {
+            for (DownloadSegment segment : state.mSegments) {
+                if (segment.isComplete()) continue;
+
+                HttpURLConnection conn = null;
+                if (firstConn != null && segment.getPosition() == 0) {
+                    conn = firstConn;
+                    firstConn = null;
+                }
+                group.start(new SegmentWorker(state, segment, group, conn, out));
+            }
+
+            // Watch for pause/cancel commands while segments are running
+            while (!group.awaitFinished(SEGMENT_POLL_INTERVAL)) {
+                updateSegmentProgress(state);
+                checkPausedOrCanceled(state);
+            }
+            group.throwIfFailed();
+            updateSegmentProgress(state);
+
+        } finally {
+            group.stop();
+            state.mCurrentBytes = DownloadSegment.sumCurrent(state.mSegments);
+            persistSegments(state);
+            state.mOutFd = null;
+            IoUtils.closeQuietly(file);
+        }
+
+        handleEndOfStream(state);
+    }
+
+    private void updateSegmentProgress(State state) {
+        final long currentBytes = DownloadSegment.sumCurrent(state.mSegments);
+        if (currentBytes != state.mCurrentBytes) {
+            state.mGotData = true;
+            state.mCurrentBytes = currentBytes;
+        }
+        reportProgress(state);
+    }
+
+    private void persistSegments(State state) {
+        syncDestination(state);
+        ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, state.mCurrentBytes);
+        values.put(Constants.SEGMENTS, DownloadSegment.format(state.mSegments));
+        updateDatabase(values);
+    }
+
+    /**
+     * Open a connection that returns the remaining range of the given
+     * segment, following any redirects.
+     */
+    private HttpURLConnection openSegmentConnection(State state, DownloadSegment segment)
+            throws StopRequestException {
+        URL url = state.mUrl;
+        int redirectionCount = 0;
+        while (redirectionCount++ < Constants.MAX_REDIRECTS) {
+            HttpURLConnection conn = null;
+            boolean keepConnection = false;
+            boolean reusable = false;
+            try {
+                conn = mTransport.open(url);
+                conn.setInstanceFollowRedirects(false);
+                conn.setConnectTimeout(DEFAULT_TIMEOUT);
+                conn.setReadTimeout(DEFAULT_TIMEOUT);
+
+                addRequestHeaders(conn);
+                // segments are always offsets into the identity encoding
+                conn.setRequestProperty("Accept-Encoding", "identity");
+                if (state.mHeaderETag != null) {
+                    conn.addRequestProperty("If-Match", state.mHeaderETag);
+                }
+                conn.addRequestProperty("Range",
+                        "bytes=" + segment.getPosition() + "-" + (segment.end - 1));
+
+                final int responseCode = conn.getResponseCode();
+                switch (responseCode) {
+                    case HTTP_PARTIAL:
+                        keepConnection = true;
+                        return conn;
+
+                    case HTTP_OK:
+                        throw new StopRequestException(
+                                STATUS_CANNOT_RESUME, "Expected partial, but received OK");
+
+                    case HTTP_MOVED_PERM:
+                    case HTTP_MOVED_TEMP:
+                    case HTTP_SEE_OTHER:
+                    case HTTP_TEMP_REDIRECT:
+                        url = new URL(url, conn.getHeaderField("Location"));
+                        reusable = KeepAliveTransport.drain(conn);
+                        continue;
+
+                    case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
+                        throw new StopRequestException(
+                                STATUS_CANNOT_RESUME, "Requested range not satisfiable");
+
+                    case HTTP_UNAVAILABLE:
+                        noteServerUnavailable(0);
+                        throw new StopRequestException(
+                                HTTP_UNAVAILABLE, conn.getResponseMessage());
+
+                    case HTTP_INTERNAL_ERROR:
+                        throw new StopRequestException(
+                                HTTP_INTERNAL_ERROR, conn.getResponseMessage());
+
+                    default:
+                        StopRequestException.throwUnhandledHttpError(
+                                responseCode, conn.getResponseMessage());
+                }
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+
+            } finally {
+                if (conn != null && !keepConnection) mTransport.release(conn, reusable);
+            }
+        }
+
+        throw new StopRequestException(STATUS_TOO_MANY_REDIRECTS, "Too many redirects");
+    }
+
+    /**
+     * Set of {@link SegmentWorker} running in parallel for a single download.
+     * The first failure of any worker is reported back to the download thread.
+     */
+    private class SegmentGroup {
+        private final List<SegmentWorker> mWorkers = new ArrayList<SegmentWorker>();
+        private final List<Thread> mThreads = new ArrayList<Thread>();
+
+        private volatile boolean mStopped;
+
+        // guarded by this
+        private int mRunning;
+        private StopRequestException mFailure;
+
+        public void start(SegmentWorker worker) {
+            synchronized (this) {
+                mRunning++;
+            }
+            final Thread thread = new Thread(worker, "DownloadSegment-" + mInfo.mId);
+            mWorkers.add(worker);
+            mThreads.add(thread);
+            thread.start();
+        }
+
+        public boolean isStopped() {
+            return mStopped;
+        }
+
+        public synchronized void onWorkerFinished(StopRequestException failure) {
+            mRunning--;
+            if (failure != null && mFailure == null && !mStopped) {
+                mFailure = failure;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Wait until all workers have finished or one has failed.
+         *
+         * @return If workers are done, either successfully or with a failure.
+         */
+        public synchronized boolean awaitFinished(long timeoutMillis)
+                throws StopRequestException {
+            if (mRunning > 0 && mFailure == null) {
+                try {
+                    wait(timeoutMillis);
+                } catch (InterruptedException e) {
+                    throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+                }
+            }
+            return mRunning == 0 || mFailure != null;
+        }
+
+        public synchronized void throwIfFailed() throws StopRequestException {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+
+        /**
+         * Stop any running workers and wait for them to exit, so that segment
+         * progress is stable.
+         */
+        public void stop() {
+            mStopped = true;
+            for (SegmentWorker worker : mWorkers) {
+                worker.abort();
+            }
+            for (Thread thread : mThreads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted waiting for segment of " + mInfo.mId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetch a single {@link DownloadSegment}, writing it at its offset in the
+     * destination file.
+     */
+    private class SegmentWorker implements Runnable {
+        private final State mState;
+        private final DownloadSegment mSegment;
+        private final SegmentGroup mGroup;
+        private final boolean mOwnsConnection;
+        private final FileChannel mOut;
+
+        private volatile HttpURLConnection mConn;
+        private volatile boolean mFinished;
+
+        public SegmentWorker(State state, DownloadSegment segment, SegmentGroup group,
+                HttpURLConnection conn, FileChannel out) {
+            mState = state;
+            mSegment = segment;
+            mGroup = group;
+            mConn = conn;
+            mOwnsConnection = (conn == null);
+            mOut = out;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            TrafficStats.setThreadStatsTag(TrafficStats.TAG_SYSTEM_DOWNLOAD);
+            TrafficStats.setThreadStatsUid(mInfo.mUid);
+
+            StopRequestException failure = null;
+            try {
+                if (mConn == null) {
+                    mConn = openSegmentConnection(mState, mSegment);
+                }
+                transferSegment();
+            } catch (StopRequestException e) {
+                failure = e;
+            } finally {
+                mFinished = true;
+                if (mOwnsConnection && mConn != null) {
+                    // body is fully consumed once the requested range is done
+                    mTransport.release(mConn, mSegment.isComplete());
+                }
+                TrafficStats.clearThreadStatsTag();
+                TrafficStats.clearThreadStatsUid();
+                mGroup.onWorkerFinished(failure);
+            }
+        }
+
+        /**
+         * Abort any blocking network reads, used when stopping early.
+         */
+        public void abort() {
+            final HttpURLConnection conn = mConn;
+            if (conn != null && !mFinished) conn.disconnect();
+        }
+
+        private void transferSegment() throws StopRequestException {
+            InputStream in = null;
+            try {
+                try {
+                    in = mConn.getInputStream();
+                } catch (IOException e) {
+                    throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+                }
+
+                ByteBuffer data = null;
+                while (!mGroup.isStopped() && !mSegment.isComplete()) {
+                    // segments share the measured speed of the whole download
+                    final int bufferSize = chooseBufferSize(
+                            mState.mSpeed / mState.mSegments.length);
+                    if (data == null || data.capacity() < bufferSize) {
+                        data = ByteBuffer.allocate(bufferSize);
+                    }
+                    final int length = (int) Math.min(bufferSize, mSegment.getRemaining());
+                    final int bytesRead;
+                    try {
+                        bytesRead = in.read(data.array(), 0, length);
+                    } catch (IOException e) {
+                        throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                                "Failed reading segment: " + e, e);
+                    }
+                    if (bytesRead == -1) {
+                        throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                                "closed socket before end of segment");
+                    }
+
+                    data.clear().limit(bytesRead);
+                    writeDataToDestination(mState, data, mOut, mSegment.getPosition());
+                    mSegment.advance(bytesRead);
+
+                    long delay;
+                    while ((delay = mLimiter.reserve(mInfo.mUid, mInfo.mPackage, bytesRead)) > 0
+                            && !mGroup.isStopped()) {
+                        SystemClock.sleep(Math.min(delay, THROTTLE_CHECK_INTERVAL));
+                    }
+                }
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+        }
+    }
+
     /**
      * Transfer as much data as possible from the HTTP response to the
      * destination file.
      */
-    private void transferData(State state, InputStream in, OutputStream out)
+    private void transferData(final State state, InputStream in, final WritableByteChannel out)
             throws StopRequestException {
-        final byte data[] = new byte[Constants.BUFFER_SIZE];
-        for (;;) {
-            int bytesRead = readFromResponse(state, data, in);
-            if (bytesRead == -1) { // success, end of stream already reached
-                handleEndOfStream(state);
-                return;
+        // Writes happen on the writer thread for the destination volume so
+        // that slow storage doesn't stall reading from the socket; progress
+        // only counts written data.
+        final File volume = mStorageManager.getVolumeRoot(mInfo.mDestination, state.mFilename);
+        final TransferPipeline pipeline = new TransferPipeline(new TransferPipeline.Sink() {
+            @Override
+            public void write(ByteBuffer data, long position) throws StopRequestException {
+                final CheckpointedDigest digest = state.mDigest;
+                final ByteBuffer written = (digest != null) ? data.duplicate() : null;
+                writeDataToDestination(state, data, out, position);
+                if (digest != null) {
+                    digest.update(written);
+                }
             }
+        }, volume, state.mCurrentBytes, Constants.TRANSFER_RING_SIZE,
+                chooseBufferSize(state.mSpeed));
+        boolean finished = false;
+        try {
+            for (;;) {
+                final ByteBuffer data = pipeline.acquire(chooseBufferSize(state.mSpeed));
+                int bytesRead = readFromResponse(state, data, in);
+                if (bytesRead == -1) { // success, end of stream already reached
+                    pipeline.release(data);
+                    pipeline.finish();
+                    state.mCurrentBytes = pipeline.getCommitted();
+                    finished = true;
+                    handleEndOfStream(state);
+                    return;
+                }
 
-            state.mGotData = true;
-            writeDataToDestination(state, data, bytesRead, out);
-            state.mCurrentBytes += bytesRead;
-            reportProgress(state);
+                state.mGotData = true;
+                pipeline.submit(data);
+                throttle(state, bytesRead);
+                state.mCurrentBytes = pipeline.getCommitted();
+                reportProgress(state);
 
-            if (Constants.LOGVV) {
-                Log.v(Constants.TAG, "downloaded " + state.mCurrentBytes + " for "
-                      + mInfo.mUri);
+                if (Constants.LOGVV) {
+                    Log.v(Constants.TAG, "downloaded " + state.mCurrentBytes + " for "
+                          + mInfo.mUri);
+                }
+
+                checkPausedOrCanceled(state);
+            }
+        } finally {
+            pipeline.close();
+            if (!finished) {
+                // Keep everything already received, so resuming picks up
+                // exactly where this attempt stopped.
+                state.mCurrentBytes = pipeline.getCommitted();
+                ContentValues values = new ContentValues();
+                putProgress(state, values);
+                syncIfCheckpoint(state, values);
+                updateDatabase(values);
             }
+        }
+    }
 
+    /**
+     * Wait as needed to keep this download within its bandwidth budgets,
+     * while still watching for pause and cancel commands.
+     */
+    private void throttle(State state, long bytes) throws StopRequestException {
+        long delay;
+        while ((delay = mLimiter.reserve(mInfo.mUid, mInfo.mPackage, bytes)) > 0) {
+            SystemClock.sleep(Math.min(delay, THROTTLE_CHECK_INTERVAL));
             checkPausedOrCanceled(state);
         }
     }
 
+    /**
+     * Choose how many bytes to read at once for the given speed, in bytes per
+     * second. Slow links use small chunks so that pause and cancel checks stay
+     * responsive, while fast links use large chunks to reduce syscalls and
+     * progress updates per byte.
+     */
+    private static int chooseBufferSize(long speed) {
+        final long target = speed * BUFFER_FILL_TIME / 1000;
+        if (target <= Constants.MIN_BUFFER_SIZE) {
+            return Constants.MIN_BUFFER_SIZE;
+        } else if (target >= Constants.MAX_BUFFER_SIZE) {
+            return Constants.MAX_BUFFER_SIZE;
+        } else {
+            // round down to a whole number of pages
+            return (int) (target & ~(Constants.MIN_BUFFER_SIZE - 1));
+        }
+    }
+
+    /**
+     * Decode a destination file that was stored with a Content-Encoding,
+     * streaming it into a temporary file that then replaces the original.
+     */
+    private void decodeDestinationFile(State state) throws StopRequestException {
+        if (state.mContentEncoding == null || state.mFilename == null) return;
+
+        final File encoded = new File(state.mFilename);
+        final File decoded = new File(state.mFilename + ".decoding");
+        InputStream in = null;
+        FileChannel out = null;
+        long decodedBytes = 0;
+        boolean success = false;
+        try {
+            try {
+                in = new GZIPInputStream(new FileInputStream(encoded),
+                        Constants.FILE_BUFFER_SIZE);
+                out = new RandomAccessFile(decoded, "rw").getChannel();
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            }
+
+            final ByteBuffer data = ByteBuffer.allocate(Constants.FILE_BUFFER_SIZE);
+            for (;;) {
+                final int bytesRead;
+                try {
+                    bytesRead = in.read(data.array(), 0, data.capacity());
+                } catch (IOException e) {
+                    throw new StopRequestException(STATUS_FILE_ERROR,
+                            "Failed to decode " + state.mContentEncoding + ": " + e);
+                }
+                if (bytesRead == -1) break;
+
+                data.clear().limit(bytesRead);
+                writeDataToDestination(state, data, out, decodedBytes);
+                decodedBytes += bytesRead;
+            }
+
+            try {
+                out.force(true);
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            }
+            success = true;
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(out);
+            if (!success) {
+                decoded.delete();
+            }
+        }
+
+        if (!decoded.renameTo(encoded)) {
+            decoded.delete();
+            throw new StopRequestException(STATUS_FILE_ERROR, "Failed to replace decoded file");
+        }
+
+        state.mContentEncoding = null;
+        state.mCurrentBytes = decodedBytes;
+        state.mTotalBytes = decodedBytes;
+
+        ContentValues values = new ContentValues();
+        values.putNull(Constants.CONTENT_ENCODING);
+        values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, decodedBytes);
+        values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, decodedBytes);
+        updateDatabase(values);
+    }
+
     /**
      * Called after a successful completion to take any necessary action on the downloaded file.
      */
@@ -507,14 +1283,20 @@ public class DownloadThread implements Runnable {
      * has been.
      */
     private void checkPausedOrCanceled(State state) throws StopRequestException {
-        synchronized (mInfo) {
-            if (mInfo.mControl == Downloads.Impl.CONTROL_PAUSED) {
-                throw new StopRequestException(
-                        Downloads.Impl.STATUS_PAUSED_BY_APP, "download paused by owner");
-            }
-            if (mInfo.mStatus == Downloads.Impl.STATUS_CANCELED) {
-                throw new StopRequestException(Downloads.Impl.STATUS_CANCELED, "download canceled");
-            }
+        // both fields are volatile, so no need to contend on mInfo
+        if (mInfo.mControl == Downloads.Impl.CONTROL_PAUSED) {
+            throw new StopRequestException(
+                    Downloads.Impl.STATUS_PAUSED_BY_APP, "download paused by owner");
+        }
+        if (mInfo.mStatus == Downloads.Impl.STATUS_CANCELED) {
+            throw new StopRequestException(Downloads.Impl.STATUS_CANCELED, "download canceled");
+        }
+
+        // yield to higher priority work, returning to the queue
+        if (mPreempted && !cannotResume(state)) {
+            mYielded = true;
+            throw new StopRequestException(
+                    Downloads.Impl.STATUS_PENDING, "preempted by higher priority download");
         }
 
         // if policy has been changed, trigger connectivity check
@@ -524,7 +1306,8 @@ public class DownloadThread implements Runnable {
     }
 
     /**
-     * Report download progress through the database if necessary.
+     * Report download progress, posting it to be persisted with the next
+     * progress flush when enough has changed.
      */
     private void reportProgress(State state) {
         final long now = SystemClock.elapsedRealtime();
@@ -551,34 +1334,190 @@ public class DownloadThread implements Runnable {
 
         if (state.mCurrentBytes - state.mBytesNotified > Constants.MIN_PROGRESS_STEP &&
             now - state.mTimeLastNotification > Constants.MIN_PROGRESS_TIME) {
+            // snapshot before syncing, so everything it covers is durable
             ContentValues values = new ContentValues();
-            values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, state.mCurrentBytes);
-            mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);
+            putProgress(state, values);
+            if (state.mSegments != null) {
+                values.put(Constants.SEGMENTS, DownloadSegment.format(state.mSegments));
+            }
+            syncIfCheckpoint(state, values);
+            mProgress.post(mInfo.mId, values);
+            mInfo.mCurrentBytes = values.getAsLong(Downloads.Impl.COLUMN_CURRENT_BYTES);
             state.mBytesNotified = state.mCurrentBytes;
             state.mTimeLastNotification = now;
         }
     }
 
+    /**
+     * Write the given values to our row, after any progress still pending
+     * with {@link ProgressAggregator}, so the two can't land out of order.
+     */
+    private void updateDatabase(ContentValues values) {
+        if (values.containsKey(Downloads.Impl.COLUMN_CURRENT_BYTES)) {
+            mInfo.mCurrentBytes = values.getAsLong(Downloads.Impl.COLUMN_CURRENT_BYTES);
+        }
+        if (values.containsKey(Downloads.Impl.COLUMN_STATUS)) {
+            synchronized (mInfo) {
+                if (mInfo.mStatus != Downloads.Impl.STATUS_CANCELED) {
+                    mInfo.mStatus = values.getAsInteger(Downloads.Impl.COLUMN_STATUS);
+                }
+            }
+        }
+        mProgress.flush(mInfo.mId);
+        mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    /**
+     * Add current progress to the given values. When hashing, progress is
+     * taken from the digest together with its checkpoint, so both always
+     * describe exactly the same bytes.
+     */
+    private void putProgress(State state, ContentValues values) {
+        final CheckpointedDigest digest = state.mDigest;
+        if (digest != null) {
+            synchronized (digest) {
+                values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, digest.getLength());
+                values.put(Constants.DIGEST_STATE, digest.save());
+            }
+        } else {
+            values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, state.mCurrentBytes);
+        }
+    }
+
+    /**
+     * Return the digest to continue a resumed download with, restored from
+     * its checkpoint when that matches the resume offset. Otherwise the
+     * existing prefix is hashed again from disk.
+     */
+    private CheckpointedDigest resumeDigest(State state, File file)
+            throws StopRequestException {
+        final CheckpointedDigest saved = CheckpointedDigest.restore(mInfo.mDigestState);
+        if (saved != null && saved.getLength() == state.mCurrentBytes) {
+            return saved;
+        }
+        if (DownloadDrmHelper.isDrmConvertNeeded(state.mMimeType)) {
+            // converted file no longer holds the original bytes
+            file.delete();
+            throw new StopRequestException(Downloads.Impl.STATUS_CANNOT_RESUME,
+                    "Missing digest checkpoint for converted download");
+        }
+
+        Log.w(TAG, "Digest checkpoint for download " + mInfo.mId + " unusable; rehashing");
+        final CheckpointedDigest digest = new CheckpointedDigest();
+        hashFile(digest, file, state.mCurrentBytes);
+        return digest;
+    }
+
+    /**
+     * Check the finished download against the digest it was requested with.
+     * Data that wasn't hashed on its way to disk, such as decoded, shared or
+     * cached responses, is hashed from the final file instead.
+     */
+    private void verifyDigest(State state) throws StopRequestException {
+        final String expected = mInfo.mExpectedHash;
+        if (expected == null || state.mFilename == null) {
+            return;
+        }
+
+        CheckpointedDigest digest = state.mDigest;
+        if (digest == null || digest.getLength() != state.mCurrentBytes) {
+            digest = new CheckpointedDigest();
+            hashFile(digest, new File(state.mFilename), Long.MAX_VALUE);
+        }
+
+        final String actual = digest.finish();
+        if (!expected.equalsIgnoreCase(actual)) {
+            throw new StopRequestException(Constants.STATUS_HASH_MISMATCH,
+                    "Content digest mismatch: expected " + expected + ", got " + actual);
+        }
+    }
+
+    /**
+     * Hash up to the given number of bytes from the start of a file.
+     */
+    private static void hashFile(CheckpointedDigest digest, File file, long length)
+            throws StopRequestException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final byte[] buffer = new byte[Constants.FILE_BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    break;
+                }
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            throw new StopRequestException(Downloads.Impl.STATUS_FILE_ERROR,
+                    "Failed to hash " + file + ": " + e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Flush written data to disk before the given progress is recorded, but
+     * only when it carries a resume checkpoint. Segments and digest state
+     * describe exactly which bytes are on disk, so they must never get ahead
+     * of the data. The same holds for current bytes of a preallocated file,
+     * since after a power loss its length can't bound what was written.
+     * Plain progress into a growing file doesn't need the cost of a sync.
+     */
+    private void syncIfCheckpoint(State state, ContentValues values) {
+        if (state.mPreallocated
+                || values.containsKey(Constants.SEGMENTS)
+                || values.containsKey(Constants.DIGEST_STATE)) {
+            syncDestination(state);
+        }
+    }
+
+    /**
+     * Flush written data to disk.
+     */
+    private void syncDestination(State state) {
+        final FileDescriptor fd = state.mOutFd;
+        if (fd != null) {
+            try {
+                fd.sync();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to sync " + mInfo.mId + ": " + e);
+            }
+        }
+    }
+
     /**
      * Write a data buffer to the destination file.
-     * @param data buffer containing the data to write
-     * @param bytesRead how many bytes to write from the buffer
+     * @param data buffer containing the data to write, between its position
+     *            and limit
+     * @param out destination; a {@link FileChannel} is written positionally,
+     *            other channels sequentially
+     * @param position file offset where the data should be written
      */
-    private void writeDataToDestination(State state, byte[] data, int bytesRead, OutputStream out)
+    private void writeDataToDestination(
+            State state, ByteBuffer data, WritableByteChannel out, long position)
             throws StopRequestException {
+        final int length = data.remaining();
         mStorageManager.verifySpaceBeforeWritingToFile(
-                mInfo.mDestination, state.mFilename, bytesRead);
+                mInfo.mDestination, state.mFilename, length);
 
         boolean forceVerified = false;
-        while (true) {
+        while (data.hasRemaining()) {
             try {
-                out.write(data, 0, bytesRead);
-                return;
+                if (out instanceof FileChannel) {
+                    final long offset = position + (length - data.remaining());
+                    ((FileChannel) out).write(data, offset);
+                } else {
+                    out.write(data);
+                }
             } catch (IOException ex) {
                 // TODO: better differentiate between DRM and disk failures
                 if (!forceVerified) {
                     // couldn't write to file. are we out of space? check.
-                    mStorageManager.verifySpace(mInfo.mDestination, state.mFilename, bytesRead);
+                    mStorageManager.verifySpace(
+                            mInfo.mDestination, state.mFilename, data.remaining());
                     forceVerified = true;
                 } else {
                     throw new StopRequestException(Downloads.Impl.STATUS_FILE_ERROR,
@@ -594,11 +1533,14 @@ public class DownloadThread implements Runnable {
      */
     private void handleEndOfStream(State state) throws StopRequestException {
         ContentValues values = new ContentValues();
-        values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, state.mCurrentBytes);
+        putProgress(state, values);
         if (state.mContentLength == -1) {
             values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, state.mCurrentBytes);
         }
-        mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);
+        if (state.mSegments != null && state.mCurrentBytes == state.mContentLength) {
+            values.putNull(Constants.SEGMENTS);
+        }
+        updateDatabase(values);
 
         final boolean lengthMismatched = (state.mContentLength != -1)
                 && (state.mCurrentBytes != state.mContentLength);
@@ -614,7 +1556,9 @@ public class DownloadThread implements Runnable {
     }
 
     private boolean cannotResume(State state) {
-        return (state.mCurrentBytes > 0 && !mInfo.mNoIntegrity && state.mHeaderETag == null)
+        // data may still be queued for writing, so consider any received
+        final boolean hasData = state.mCurrentBytes > 0 || state.mGotData;
+        return (hasData && !mInfo.mNoIntegrity && state.mHeaderETag == null)
                 || DownloadDrmHelper.isDrmConvertNeeded(state.mMimeType);
     }
 
@@ -624,19 +1568,24 @@ public class DownloadThread implements Runnable {
      * @param entityStream stream for reading the HTTP response entity
      * @return the number of bytes actually read or -1 if the end of the stream has been reached
      */
-    private int readFromResponse(State state, byte[] data, InputStream entityStream)
+    private int readFromResponse(State state, ByteBuffer data, InputStream entityStream)
             throws StopRequestException {
         try {
-            return entityStream.read(data);
+            // Fill the backing array directly; response streams aren't
+            // channels, so a direct buffer would only add another copy.
+            final int length = Math.min(data.capacity(), chooseBufferSize(state.mSpeed));
+            final int bytesRead = entityStream.read(data.array(), 0, length);
+            if (bytesRead != -1) {
+                data.clear().limit(bytesRead);
+            }
+            return bytesRead;
         } catch (IOException ex) {
             // TODO: handle stream errors the same as other retries
             if ("unexpected end of stream".equals(ex.getMessage())) {
                 return -1;
             }
 
-            ContentValues values = new ContentValues();
-            values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, state.mCurrentBytes);
-            mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);
+            // progress is persisted by transferData() once writes settle
             if (cannotResume(state)) {
                 throw new StopRequestException(STATUS_CANNOT_RESUME,
                         "Failed reading response: " + ex + "; unable to resume", ex);
@@ -648,16 +1597,20 @@ public class DownloadThread implements Runnable {
     }
 
     /**
-     * Prepare target file based on given network response. Derives filename and
-     * target size as needed.
+     * Prepare target file based on response headers already read. Derives
+     * filename and target size as needed.
      */
-    private void processResponseHeaders(State state, HttpURLConnection conn)
-            throws StopRequestException {
-        // TODO: fallocate the entire file if header gave us specific length
+    private void processResponseHeaders(State state) throws StopRequestException {
+        state.mFilename = generateSaveFile(state);
+        preallocateDestinationFile(state);
 
-        readResponseHeaders(state, conn);
+        updateDatabaseFromHeaders(state);
+        // check connectivity again now that we know the total size
+        checkConnectivity();
+    }
 
-        state.mFilename = Helpers.generateSaveFile(
+    private String generateSaveFile(State state) throws StopRequestException {
+        return Helpers.generateSaveFile(
                 mContext,
                 mInfo.mUri,
                 mInfo.mHint,
@@ -667,10 +1620,55 @@ public class DownloadThread implements Runnable {
                 mInfo.mDestination,
                 state.mContentLength,
                 mStorageManager);
+    }
 
+    /**
+     * Server confirmed that our cached copy is still current, so use it as
+     * the response without transferring the body again.
+     */
+    private void materializeCachedResponse(State state) throws StopRequestException {
+        final DownloadCache.Entry entry = state.mCacheEntry;
+        if (state.mMimeType == null) {
+            state.mMimeType = entry.mMimeType;
+        }
+        state.mContentDisposition = entry.mContentDisposition;
+        state.mContentLocation = null;
+        state.mHeaderETag = entry.mETag;
+        state.mLastModified = entry.mLastModified;
+        state.mContentEncoding = null;
+        state.mContentLength = entry.mLength;
+        state.mTotalBytes = entry.mLength;
+        mInfo.mTotalBytes = entry.mLength;
+
+        state.mFilename = generateSaveFile(state);
         updateDatabaseFromHeaders(state);
-        // check connectivity again now that we know the total size
-        checkConnectivity();
+
+        state.mCurrentBytes = copyToDestination(entry.mFile, state.mFilename);
+        state.mServedFromCache = true;
+        mStorageManager.getDownloadCache().noteRevalidated(entry, true);
+        Log.i(TAG, "Download " + mInfo.mId + " not modified; materialized from cache");
+
+        ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, state.mCurrentBytes);
+        updateDatabase(values);
+    }
+
+    /**
+     * Keep a copy of a completed download that the server gave a strong
+     * validator for, so downloading it again can be answered from cache.
+     * Weak ETags and Last-Modified alone can't prove a 304 refers to the
+     * same bytes, so those responses aren't kept.
+     */
+    private void storeInCache(State state) {
+        if (state.mServedFromCache || state.mFilename == null || state.mUrl == null
+                || !Helpers.isStrongETag(state.mHeaderETag)
+                || isCacheControlPrivate(state.mCacheControl) || hasCredentials()
+                || DownloadDrmHelper.isDrmConvertNeeded(state.mMimeType)) {
+            return;
+        }
+        mStorageManager.getDownloadCache().put(mInfo.mId, mInfo.mUid, state.mUrl.toString(),
+                state.mHeaderETag, state.mLastModified, state.mMimeType,
+                state.mContentDisposition, new File(state.mFilename));
     }
 
     /**
@@ -686,8 +1684,46 @@ public class DownloadThread implements Runnable {
         if (state.mMimeType != null) {
             values.put(Downloads.Impl.COLUMN_MIME_TYPE, state.mMimeType);
         }
+        values.put(Constants.CONTENT_ENCODING, state.mContentEncoding);
         values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, mInfo.mTotalBytes);
-        mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);
+        updateDatabase(values);
+    }
+
+    /**
+     * Allocate the entire destination file when the response gave a specific
+     * length, letting the filesystem lay it out in contiguous extents and
+     * failing early when there isn't enough space. Since this extends the
+     * file, resuming relies on {@link Downloads.Impl#COLUMN_CURRENT_BYTES}
+     * instead of file length.
+     */
+    private void preallocateDestinationFile(State state) throws StopRequestException {
+        // DRM conversion changes the size of what's written
+        if (state.mContentLength <= 0
+                || DownloadDrmHelper.isDrmConvertNeeded(state.mMimeType)) {
+            return;
+        }
+
+        mStorageManager.verifySpace(mInfo.mDestination, state.mFilename, state.mContentLength);
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(state.mFilename, "rw");
+            Libcore.os.posix_fallocate(file.getFD(), 0, state.mContentLength);
+            state.mPreallocated = true;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSYS || e.errno == OsConstants.ENOTSUP) {
+                Log.w(TAG, "fallocate() not supported; skipping preallocation");
+            } else if (e.errno == OsConstants.ENOSPC) {
+                throw new StopRequestException(STATUS_INSUFFICIENT_SPACE_ERROR,
+                        "insufficient space to preallocate " + state.mContentLength + " bytes");
+            } else {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            }
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        } finally {
+            IoUtils.closeQuietly(file);
+        }
     }
 
     /**
@@ -703,6 +1739,13 @@ public class DownloadThread implements Runnable {
         }
 
         state.mHeaderETag = conn.getHeaderField("ETag");
+        state.mLastModified = conn.getHeaderField("Last-Modified");
+        state.mCacheControl = conn.getHeaderField("Cache-Control");
+        state.mContentEncoding = normalizeContentEncoding(conn.getContentEncoding());
+        if (state.mContentEncoding != null && !"gzip".equals(state.mContentEncoding)) {
+            throw new StopRequestException(Downloads.Impl.STATUS_NOT_ACCEPTABLE,
+                    "unsupported Content-Encoding " + state.mContentEncoding);
+        }
 
         final String transferEncoding = conn.getHeaderField("Transfer-Encoding");
         if (transferEncoding == null) {
@@ -723,6 +1766,14 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Remember that the server answered with {@link HttpURLConnection#HTTP_UNAVAILABLE},
+     * so other downloads from the same host are held back.
+     */
+    private void noteServerUnavailable(long retryAfter) {
+        mServerBackoff = retryAfter > 0 ? retryAfter : Constants.MIN_RETRY_AFTER * SECOND_IN_MILLIS;
+    }
+
     private void parseRetryAfterHeaders(State state, HttpURLConnection conn) {
         state.mRetryAfter = conn.getHeaderFieldInt("Retry-After", -1);
         if (state.mRetryAfter < 0) {
@@ -761,7 +1812,10 @@ public class DownloadThread implements Runnable {
                     Log.i(Constants.TAG, "resuming download for id: " + mInfo.mId +
                             ", and state.mFilename: " + state.mFilename);
                 }
-                long fileLength = f.length();
+                // Preallocated files are longer than what has been written,
+                // so resume from the last persisted progress.
+                long fileLength = Math.min(f.length(), mInfo.mCurrentBytes);
+                state.mPreallocated = f.length() > mInfo.mCurrentBytes;
                 if (fileLength == 0) {
                     // The download hadn't actually started, we can restart from scratch
                     if (Constants.LOGVV) {
@@ -789,12 +1843,28 @@ public class DownloadThread implements Runnable {
                         Log.i(Constants.TAG, "resuming download for id: " + mInfo.mId +
                                 ", and starting with file of length: " + fileLength);
                     }
-                    state.mCurrentBytes = (int) fileLength;
+                    state.mCurrentBytes = fileLength;
+                    if (mInfo.mSegments != null) {
+                        // Segments are written at their own offsets, so file
+                        // length doesn't reflect progress.
+                        state.mSegments = DownloadSegment.parse(mInfo.mSegments);
+                        if (state.mSegments == null) {
+                            f.delete();
+                            throw new StopRequestException(Downloads.Impl.STATUS_CANNOT_RESUME,
+                                    "Invalid segments for resumed download");
+                        }
+                        state.mCurrentBytes = DownloadSegment.sumCurrent(state.mSegments);
+                    }
                     if (mInfo.mTotalBytes != -1) {
                         state.mContentLength = mInfo.mTotalBytes;
                     }
                     state.mHeaderETag = mInfo.mETag;
+                    state.mContentEncoding = mInfo.mContentEncoding;
                     state.mContinuingDownload = true;
+                    if (mInfo.mExpectedHash != null && state.mContentEncoding == null
+                            && state.mSegments == null) {
+                        state.mDigest = resumeDigest(state, f);
+                    }
                     if (Constants.LOGV) {
                         Log.i(Constants.TAG, "resuming download for id: " + mInfo.mId +
                                 ", state.mCurrentBytes: " + state.mCurrentBytes +
@@ -809,6 +1879,64 @@ public class DownloadThread implements Runnable {
      * Add custom headers for this download to the HTTP request.
      */
     private void addRequestHeaders(State state, HttpURLConnection conn) {
+        addRequestHeaders(conn);
+
+        state.mCacheEntry = null;
+        if (state.mContinuingDownload) {
+            if (state.mHeaderETag != null) {
+                conn.addRequestProperty("If-Match", state.mHeaderETag);
+            }
+            conn.addRequestProperty("Range", "bytes=" + state.mCurrentBytes + "-");
+
+        } else if (!DownloadDrmHelper.isDrmConvertNeeded(state.mMimeType)
+                && !hasCredentials()) {
+            // offer any earlier copy this app downloaded for revalidation,
+            // unless the app has made its own request conditional
+            final DownloadCache.Entry entry = mStorageManager.getDownloadCache().get(
+                    mInfo.mUid, state.mUrl.toString());
+            if (entry != null && conn.getRequestProperty("If-None-Match") == null
+                    && conn.getRequestProperty("If-Modified-Since") == null) {
+                conn.addRequestProperty("If-None-Match", entry.mETag);
+                state.mCacheEntry = entry;
+            }
+        }
+    }
+
+    /**
+     * Return if this download sends credentials, in which case the response
+     * may be specific to the user and is kept out of the cache.
+     */
+    private boolean hasCredentials() {
+        for (Pair<String, String> header : mInfo.getHeaders()) {
+            if ("Authorization".equalsIgnoreCase(header.first)
+                    || "Cookie".equalsIgnoreCase(header.first)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return if the given Cache-Control header forbids shared or stored
+     * copies of the response.
+     */
+    static boolean isCacheControlPrivate(String cacheControl) {
+        if (cacheControl == null) return false;
+        for (String directive : cacheControl.split(",")) {
+            final int split = directive.indexOf('=');
+            final String name = (split >= 0 ? directive.substring(0, split) : directive).trim();
+            if ("no-store".equalsIgnoreCase(name) || "private".equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add custom headers and defaults shared by every request for this
+     * download, regardless of requested range.
+     */
+    private void addRequestHeaders(HttpURLConnection conn) {
         for (Pair<String, String> header : mInfo.getHeaders()) {
             conn.addRequestProperty(header.first, header.second);
         }
@@ -819,15 +1947,45 @@ public class DownloadThread implements Runnable {
         }
 
         // Defeat transparent gzip compression, since it doesn't allow us to
-        // easily resume partial downloads.
-        conn.setRequestProperty("Accept-Encoding", "identity");
+        // easily resume partial downloads. Callers can opt into gzip, which
+        // is stored as-is and resumed by compressed offset; we ask for
+        // exactly gzip, since it's the only encoding we can decode.
+        if (acceptsCompressed(conn)) {
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+        } else {
+            conn.setRequestProperty("Accept-Encoding", "identity");
+        }
+    }
 
-        if (state.mContinuingDownload) {
-            if (state.mHeaderETag != null) {
-                conn.addRequestProperty("If-Match", state.mHeaderETag);
+    /**
+     * Check if the requesting app explicitly accepted gzip encoding, which
+     * the platform then passes through to us undecoded.
+     */
+    private boolean acceptsCompressed(HttpURLConnection conn) {
+        final String acceptEncoding = conn.getRequestProperty("Accept-Encoding");
+        if (acceptEncoding == null || DownloadDrmHelper.isDrmConvertNeeded(mInfo.mMimeType)) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] params = coding.split(";");
+            if ("gzip".equalsIgnoreCase(params[0].trim())) {
+                // an explicit weight of zero refuses the coding
+                for (int i = 1; i < params.length; i++) {
+                    if (params[i].trim().matches("(?i)q\\s*=\\s*0(\\.0*)?")) {
+                        return false;
+                    }
+                }
+                return true;
             }
-            conn.addRequestProperty("Range", "bytes=" + state.mCurrentBytes + "-");
         }
+        return false;
+    }
+
+    private static String normalizeContentEncoding(String contentEncoding) {
+        if (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding)) {
+            return null;
+        }
+        return contentEncoding.toLowerCase();
     }
 
     /**
@@ -855,11 +2013,17 @@ public class DownloadThread implements Runnable {
             values.put(Downloads.Impl.COLUMN_URI, state.mRequestUri);
         }
 
+        // ranges are meaningless once the partial file is removed
+        if (Downloads.Impl.isStatusError(finalStatus)) {
+            values.putNull(Constants.SEGMENTS);
+            values.putNull(Constants.DIGEST_STATE);
+        }
+
         // save the error message. could be useful to developers.
         if (!TextUtils.isEmpty(errorMsg)) {
             values.put(Downloads.Impl.COLUMN_ERROR_MSG, errorMsg);
         }
-        mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);
+        updateDatabase(values);
     }
 
     private INetworkPolicyListener mPolicyListener = new INetworkPolicyListener.Stub() {
@@ -867,6 +2031,7 @@ public class DownloadThread implements Runnable {
         public void onUidRulesChanged(int uid, int uidRules) {
             // caller is NPMS, since we only register with them
             if (uid == mInfo.mUid) {
+                NetworkSnapshotCache.invalidateActive();
                 mPolicyDirty = true;
             }
         }
@@ -874,12 +2039,14 @@ public class DownloadThread implements Runnable {
         @Override
         public void onMeteredIfacesChanged(String[] meteredIfaces) {
             // caller is NPMS, since we only register with them
+            NetworkSnapshotCache.invalidateActive();
             mPolicyDirty = true;
         }
 
         @Override
         public void onRestrictBackgroundChanged(boolean restrictBackground) {
             // caller is NPMS, since we only register with them
+            NetworkSnapshotCache.invalidateActive();
             mPolicyDirty = true;
         }
     };
@@ -25,12 +25,18 @@ import android.util.Log;
 import android.webkit.MimeTypeMap;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Random;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import libcore.io.ErrnoException;
+import libcore.io.IoUtils;
+import libcore.io.Libcore;
+
 /**
  * Some helper functions for the download manager
  */
@@ -46,6 +52,36 @@ public class Helpers {
     private Helpers() {
     }
 
+    /**
+     * Copy the contents of one file over another within the kernel, without
+     * passing data through userspace. The target is truncated first.
+     *
+     * @return number of bytes copied.
+     */
+    static long copyFile(File source, File target) throws IOException, ErrnoException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(target);
+
+            final long length = in.getChannel().size();
+            long remaining = length;
+            while (remaining > 0) {
+                final long sent = Libcore.os.sendfile(out.getFD(), in.getFD(), null, remaining);
+                if (sent <= 0) {
+                    throw new IOException("source truncated while copying");
+                }
+                remaining -= sent;
+            }
+            out.getFD().sync();
+            return length;
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(out);
+        }
+    }
+
     /*
      * Parse the Content-Disposition HTTP Header. The format of the header
      * is defined here: http://www.w3.org/Protocols/rfc2616/rfc2616-sec19.html
@@ -348,6 +384,14 @@ public class Helpers {
                 || filename.startsWith(Environment.getExternalStorageDirectory().toString());
     }
 
+    /**
+     * Checks whether the given ETag is a strong validator, which servers
+     * honor in If-Match and which guarantees byte-identical content.
+     */
+    static boolean isStrongETag(String eTag) {
+        return eTag != null && !eTag.startsWith("W/");
+    }
+
     /**
      * Checks whether this looks like a legitimate selection parameter
      */
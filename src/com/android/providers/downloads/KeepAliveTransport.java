@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+import libcore.io.IoUtils;
+
+/**
+ * Transport for {@link DownloadThread} that lets connections to the same
+ * host be reused through the platform {@link HttpURLConnection} keep-alive
+ * pool. This holds no sockets itself: the platform pool recycles a
+ * connection whose response body was fully consumed and closed, and this
+ * only decides between handing it back and disconnecting it, and tunes the
+ * platform keep-alive properties.
+ */
+public class KeepAliveTransport implements DownloadThread.Transport {
+
+    /** Largest response body drained to recycle a connection, such as a redirect. */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    @GuardedBy("KeepAliveTransport.class")
+    private static boolean sConfigured;
+
+    /** Connections handed back to the platform pool. */
+    private final AtomicLong mReleased = new AtomicLong();
+    /** Connections torn down instead. */
+    private final AtomicLong mDisconnected = new AtomicLong();
+
+    /**
+     * Enable keep-alive in the platform pool used by every
+     * {@link HttpURLConnection} in this process, not only downloads, so this
+     * is called once when the service starts. The pool reads these
+     * properties when first used, so they only take effect if no connection
+     * was opened before. The platform pool has no configurable idle timeout.
+     */
+    public static synchronized void configurePlatformKeepAlive(int maxIdlePerHost) {
+        if (sConfigured) return;
+        sConfigured = true;
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxIdlePerHost));
+    }
+
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A reusable connection hands its socket back to the platform pool;
+     * otherwise the connection is torn down.
+     */
+    @Override
+    public void release(HttpURLConnection conn, boolean reusable) {
+        if (reusable) {
+            mReleased.incrementAndGet();
+        } else {
+            mDisconnected.incrementAndGet();
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Read and close any remaining response body, such as from a redirect,
+     * so the connection can be reused.
+     *
+     * @return if the body was consumed completely.
+     */
+    public static boolean drain(HttpURLConnection conn) {
+        InputStream in = null;
+        try {
+            in = conn.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? conn.getErrorStream() : conn.getInputStream();
+            if (in == null) return true;
+
+            final byte[] buffer = new byte[4096];
+            int drained = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                drained += read;
+                if (drained > MAX_DRAIN_BYTES) return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("KeepAliveTransport:");
+        pw.increaseIndent();
+        pw.printPair("released", mReleased.get());
+        pw.printPair("disconnected", mDisconnected.get());
+        pw.println();
+        pw.decreaseIndent();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.net.NetworkInfo;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Network state as seen by each UID, read through {@link SystemFacade} once
+ * and shared by every download until something changes. Each of those
+ * reads is a binder call, and checking every download separately used to
+ * repeat them for each download on every update pass.
+ * <p>
+ * Cleared at the start of each update pass, on
+ * {@link android.net.ConnectivityManager#CONNECTIVITY_ACTION}, and when
+ * network policy changes.
+ */
+public class NetworkSnapshotCache {
+
+    /**
+     * Consistent view of network state for a single UID.
+     */
+    public static class Snapshot {
+        /** Active network for the UID, or {@code null} when none */
+        public final NetworkInfo mInfo;
+        public final boolean mRoaming;
+        public final boolean mMetered;
+        public final Long mMaxBytesOverMobile;
+        public final Long mRecommendedMaxBytesOverMobile;
+
+        private Snapshot(NetworkInfo info, boolean roaming, boolean metered,
+                Long maxBytesOverMobile, Long recommendedMaxBytesOverMobile) {
+            mInfo = info;
+            mRoaming = roaming;
+            mMetered = metered;
+            mMaxBytesOverMobile = maxBytesOverMobile;
+            mRecommendedMaxBytesOverMobile = recommendedMaxBytesOverMobile;
+        }
+    }
+
+    /** Cache of the running service, cleared by broadcasts. */
+    private static volatile NetworkSnapshotCache sActive;
+
+    private final SystemFacade mSystemFacade;
+
+    /** Bumped on every invalidation, so stale reads are never stored. */
+    @GuardedBy("this")
+    private int mGeneration;
+    /** State shared by all UIDs, held with {@link Snapshot#mInfo} unset */
+    @GuardedBy("this")
+    private Snapshot mShared;
+    @GuardedBy("this")
+    private final SparseArray<Snapshot> mSnapshots = new SparseArray<Snapshot>();
+
+    @GuardedBy("this")
+    private long mHits;
+    @GuardedBy("this")
+    private long mMisses;
+
+    public NetworkSnapshotCache(SystemFacade systemFacade) {
+        mSystemFacade = systemFacade;
+    }
+
+    public static void setActive(NetworkSnapshotCache cache) {
+        sActive = cache;
+    }
+
+    /**
+     * Clear the active cache, if any.
+     */
+    public static void invalidateActive() {
+        final NetworkSnapshotCache active = sActive;
+        if (active != null) {
+            active.invalidate();
+        }
+    }
+
+    /**
+     * Returns network state for the given UID, reading it when nothing is
+     * cached.
+     */
+    public Snapshot get(int uid) {
+        final int generation;
+        Snapshot shared;
+        synchronized (this) {
+            final Snapshot snapshot = mSnapshots.get(uid);
+            if (snapshot != null) {
+                mHits++;
+                return snapshot;
+            }
+            mMisses++;
+            generation = mGeneration;
+            shared = mShared;
+        }
+
+        // read outside the lock, since these are binder calls
+        if (shared == null) {
+            shared = new Snapshot(null, mSystemFacade.isNetworkRoaming(),
+                    mSystemFacade.isActiveNetworkMetered(),
+                    mSystemFacade.getMaxBytesOverMobile(),
+                    mSystemFacade.getRecommendedMaxBytesOverMobile());
+        }
+        final Snapshot snapshot = new Snapshot(mSystemFacade.getActiveNetworkInfo(uid),
+                shared.mRoaming, shared.mMetered, shared.mMaxBytesOverMobile,
+                shared.mRecommendedMaxBytesOverMobile);
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mShared = shared;
+                mSnapshots.put(uid, snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drop everything cached, so the next {@link #get(int)} reads current
+     * state.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mShared = null;
+        mSnapshots.clear();
+    }
+
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("NetworkSnapshotCache:");
+        pw.increaseIndent();
+        pw.printPair("uids", mSnapshots.size());
+        pw.printPair("hits", mHits);
+        pw.printPair("misses", mMisses);
+        pw.println();
+        pw.decreaseIndent();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.TAG;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.provider.Downloads;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-back journal for the progress of running downloads, whose source of
+ * truth is the in-memory {@link DownloadInfo}. Download threads post changes
+ * without blocking, merging them with anything not yet written for the same
+ * download. On a single cadence all pending rows are written in one database
+ * transaction, followed by one change notification, so a crash loses at most
+ * one flush interval.
+ * <p>
+ * While the service is running its journal is registered as active, and
+ * {@link DownloadProvider} overlays pending progress on query results, so
+ * readers always see fresh values.
+ */
+public class ProgressAggregator {
+
+    private static final int MSG_FLUSH = 1;
+
+    /** Journal of the running service, consulted by provider queries. */
+    private static volatile ProgressAggregator sActive;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final long mInterval;
+
+    /** Latest unwritten progress for each download. */
+    private final ConcurrentHashMap<Long, ContentValues> mPending =
+            new ConcurrentHashMap<Long, ContentValues>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    /** Serializes writing, so progress never lands out of order. */
+    private final Object mFlushLock = new Object();
+
+    @GuardedBy("mFlushLock")
+    private long mFlushes;
+    @GuardedBy("mFlushLock")
+    private long mRowsWritten;
+
+    /**
+     * @param looper on which periodic flushes run.
+     * @param interval between flushes, in milliseconds.
+     */
+    public ProgressAggregator(Context context, Looper looper, long interval) {
+        mContext = context;
+        mInterval = interval;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                mScheduled.set(false);
+                flush();
+            }
+        };
+    }
+
+    public static void setActive(ProgressAggregator aggregator) {
+        sActive = aggregator;
+    }
+
+    /**
+     * Prepare to query download rows with the given projection. Pending
+     * progress is normally overlaid on the results by
+     * {@link #overlayActive(Cursor)}, but when the projection leaves out
+     * {@link Downloads.Impl#_ID} rows can't be matched to downloads, so it's
+     * written out now instead.
+     */
+    public static void prepareQuery(String[] projection) {
+        final ProgressAggregator active = sActive;
+        if (active == null || active.mPending.isEmpty() || projection == null) return;
+
+        final List<String> columns = Arrays.asList(projection);
+        if (columns.contains(Downloads.Impl.COLUMN_CURRENT_BYTES)
+                && !columns.contains(Downloads.Impl._ID)) {
+            // may be flushing on behalf of another app querying the provider
+            final long token = Binder.clearCallingIdentity();
+            try {
+                active.flush();
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+        }
+    }
+
+    /**
+     * Return the given download rows with any progress pending in the
+     * active journal in place of what was last written.
+     */
+    public static Cursor overlayActive(Cursor cursor) {
+        final ProgressAggregator active = sActive;
+        if (active == null || active.mPending.isEmpty()
+                || cursor.getColumnIndex(Downloads.Impl._ID) == -1
+                || cursor.getColumnIndex(Downloads.Impl.COLUMN_CURRENT_BYTES) == -1) {
+            return cursor;
+        }
+        return new ProgressOverlayCursor(
+                cursor, new HashMap<Long, ContentValues>(active.mPending));
+    }
+
+    /**
+     * Record changes to the given download, to be written with the next
+     * flush. Values are merged with anything posted earlier, later values
+     * replacing earlier ones for the same column.
+     */
+    public void post(long id, ContentValues values) {
+        // merge without locking, retrying if a flush or another post raced us
+        for (;;) {
+            final ContentValues existing = mPending.get(id);
+            if (existing == null) {
+                if (mPending.putIfAbsent(id, values) == null) break;
+            } else {
+                final ContentValues merged = new ContentValues(existing);
+                merged.putAll(values);
+                if (mPending.replace(id, existing, merged)) break;
+            }
+        }
+        if (mScheduled.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, mInterval);
+        }
+    }
+
+    /**
+     * Write any pending progress of the given download now. Called before
+     * the download updates its row directly, so older progress can't later
+     * overwrite it.
+     */
+    public void flush(long id) {
+        synchronized (mFlushLock) {
+            final ContentValues values = mPending.remove(id);
+            if (values != null) {
+                mContext.getContentResolver().update(
+                        ContentUris.withAppendedId(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, id),
+                        values, null, null);
+                mRowsWritten++;
+            }
+        }
+    }
+
+    /**
+     * Write all pending progress in a single transaction.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            if (mPending.isEmpty()) return;
+
+            final int size = mPending.size();
+            final long[] ids = new long[size];
+            final ContentValues[] values = new ContentValues[size];
+            int count = 0;
+            for (Map.Entry<Long, ContentValues> entry : mPending.entrySet()) {
+                if (count == size) break;
+                // only take values not replaced since we looked
+                if (mPending.remove(entry.getKey(), entry.getValue())) {
+                    ids[count] = entry.getKey();
+                    values[count] = entry.getValue();
+                    count++;
+                }
+            }
+            if (count == 0) return;
+
+            final Bundle extras = new Bundle();
+            extras.putLongArray(Constants.EXTRA_IDS, Arrays.copyOf(ids, count));
+            extras.putParcelableArray(Constants.EXTRA_VALUES, Arrays.copyOf(values, count));
+            try {
+                mContext.getContentResolver().call(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                        Constants.METHOD_UPDATE_PROGRESS, null, extras);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to persist progress: " + e);
+            }
+            mFlushes++;
+            mRowsWritten += count;
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mFlushLock) {
+            pw.println("ProgressAggregator:");
+            pw.increaseIndent();
+            pw.printPair("pending", mPending.size());
+            pw.printPair("flushes", mFlushes);
+            pw.printPair("rowsWritten", mRowsWritten);
+            pw.println();
+            pw.decreaseIndent();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.provider.Downloads;
+
+import java.util.Map;
+
+/**
+ * Cursor over download rows that reports progress still pending in
+ * {@link ProgressAggregator} in place of what was last written, so readers
+ * see fresh values without every query forcing a write. Only
+ * {@link Downloads.Impl#COLUMN_CURRENT_BYTES} is overlaid; status and
+ * control always come from the row.
+ */
+class ProgressOverlayCursor extends CursorWrapper {
+    private final Map<Long, ContentValues> mPending;
+    private final int mIdColumn;
+    private final int mCurrentBytesColumn;
+
+    /**
+     * @param cursor which must include {@link Downloads.Impl#_ID}.
+     * @param pending progress not yet written, by download ID.
+     */
+    public ProgressOverlayCursor(Cursor cursor, Map<Long, ContentValues> pending) {
+        super(cursor);
+        mPending = pending;
+        mIdColumn = cursor.getColumnIndexOrThrow(Downloads.Impl._ID);
+        mCurrentBytesColumn = cursor.getColumnIndex(Downloads.Impl.COLUMN_CURRENT_BYTES);
+    }
+
+    /**
+     * Return pending current bytes of the row under the cursor, or
+     * {@code null} when the row itself is current.
+     */
+    private Long getPendingCurrentBytes(int column) {
+        if (column != mCurrentBytesColumn || mCurrentBytesColumn == -1) {
+            return null;
+        }
+        final ContentValues values = mPending.get(super.getLong(mIdColumn));
+        return (values != null) ? values.getAsLong(Downloads.Impl.COLUMN_CURRENT_BYTES) : null;
+    }
+
+    @Override
+    public long getLong(int column) {
+        final Long pending = getPendingCurrentBytes(column);
+        return (pending != null) ? pending : super.getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        final Long pending = getPendingCurrentBytes(column);
+        return (pending != null) ? pending.intValue() : super.getInt(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        final Long pending = getPendingCurrentBytes(column);
+        return (pending != null) ? pending.toString() : super.getString(column);
+    }
+}
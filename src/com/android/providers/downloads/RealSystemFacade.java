@@ -22,6 +22,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.provider.Settings;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
@@ -87,6 +88,11 @@ class RealSystemFacade implements SystemFacade {
         return DownloadManager.getRecommendedMaxBytesOverMobile(mContext);
     }
 
+    @Override
+    public long getBandwidthLimit(String setting) {
+        return Settings.Global.getLong(mContext.getContentResolver(), setting, 0);
+    }
+
     @Override
     public void sendBroadcast(Intent intent) {
         mContext.sendBroadcast(intent);
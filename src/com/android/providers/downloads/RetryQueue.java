@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import com.google.android.collect.Maps;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Deadlines of downloads waiting to retry, kept in a min-heap indexed by
+ * download ID so that any deadline can be added, moved or removed in
+ * {@code O(log n)}, and the earliest found in constant time.
+ * <p>
+ * Not thread safe; callers must provide their own locking.
+ */
+public class RetryQueue {
+
+    private long[] mIds = new long[16];
+    private long[] mDeadlines = new long[16];
+    private int mSize;
+
+    /** Position of each download within the heap */
+    private final HashMap<Long, Integer> mPositions = Maps.newHashMap();
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean contains(long id) {
+        return mPositions.containsKey(id);
+    }
+
+    /**
+     * Returns the deadline of the given download, or {@link Long#MAX_VALUE}
+     * when it isn't queued.
+     */
+    public long getDeadline(long id) {
+        final Integer position = mPositions.get(id);
+        return position != null ? mDeadlines[position] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the earliest deadline, or {@link Long#MAX_VALUE} when empty.
+     */
+    public long peekDeadline() {
+        return mSize > 0 ? mDeadlines[0] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Queue the given download to retry at the given time, replacing any
+     * deadline it already had.
+     */
+    public void schedule(long id, long deadline) {
+        final Integer position = mPositions.get(id);
+        if (position != null) {
+            final long previous = mDeadlines[position];
+            mDeadlines[position] = deadline;
+            if (deadline < previous) {
+                siftUp(position);
+            } else {
+                siftDown(position);
+            }
+            return;
+        }
+
+        if (mSize == mIds.length) {
+            mIds = Arrays.copyOf(mIds, mSize * 2);
+            mDeadlines = Arrays.copyOf(mDeadlines, mSize * 2);
+        }
+        mIds[mSize] = id;
+        mDeadlines[mSize] = deadline;
+        mPositions.put(id, mSize);
+        siftUp(mSize++);
+    }
+
+    /**
+     * Remove the given download from the queue.
+     *
+     * @return if the download was queued.
+     */
+    public boolean remove(long id) {
+        final Integer position = mPositions.remove(id);
+        if (position == null) {
+            return false;
+        }
+        removeAt(position);
+        return true;
+    }
+
+    /**
+     * Remove and return the download with the earliest deadline.
+     *
+     * @throws IllegalStateException when empty.
+     */
+    public long poll() {
+        if (mSize == 0) {
+            throw new IllegalStateException("No downloads waiting to retry");
+        }
+        final long id = mIds[0];
+        mPositions.remove(id);
+        removeAt(0);
+        return id;
+    }
+
+    private void removeAt(int position) {
+        final int last = --mSize;
+        if (position != last) {
+            move(last, position);
+            siftDown(position);
+            siftUp(position);
+        }
+    }
+
+    private void siftUp(int position) {
+        final long id = mIds[position];
+        final long deadline = mDeadlines[position];
+        while (position > 0) {
+            final int parent = (position - 1) / 2;
+            if (mDeadlines[parent] <= deadline) break;
+            move(parent, position);
+            position = parent;
+        }
+        place(id, deadline, position);
+    }
+
+    private void siftDown(int position) {
+        final long id = mIds[position];
+        final long deadline = mDeadlines[position];
+        while (true) {
+            int child = position * 2 + 1;
+            if (child >= mSize) break;
+            if (child + 1 < mSize && mDeadlines[child + 1] < mDeadlines[child]) {
+                child++;
+            }
+            if (deadline <= mDeadlines[child]) break;
+            move(child, position);
+            position = child;
+        }
+        place(id, deadline, position);
+    }
+
+    private void move(int from, int to) {
+        place(mIds[from], mDeadlines[from], to);
+    }
+
+    private void place(long id, long deadline, int position) {
+        mIds[position] = id;
+        mDeadlines[position] = deadline;
+        mPositions.put(id, position);
+    }
+}
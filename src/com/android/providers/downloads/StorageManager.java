@@ -71,6 +71,9 @@ class StorageManager {
      */
     private final File mDownloadDataDir;
 
+    /** Directory under the downloads data dir that holds {@link DownloadCache} entries */
+    private static final String CACHE_DIRECTORY = "revalidation_cache";
+
     /** how often do we need to perform checks on space to make sure space is available */
     private static final int FREQUENCY_OF_CHECKS_ON_SPACE_AVAILABILITY = 1024 * 1024; // 1MB
     private int mBytesDownloadedSinceLastCheckOnSpace = 0;
@@ -78,11 +81,18 @@ class StorageManager {
     /** misc members */
     private final Context mContext;
 
+    private final Object mCleanupLock = new Object();
+
+    /** Copies of completed downloads kept for conditional revalidation */
+    private final DownloadCache mCache;
+
     public StorageManager(Context context) {
         mContext = context;
         mDownloadDataDir = getDownloadDataDirectory(context);
         mExternalStorageDir = Environment.getExternalStorageDirectory();
         mSystemCacheDir = Environment.getDownloadCacheDirectory();
+        mCache = new DownloadCache(context, new File(mDownloadDataDir, CACHE_DIRECTORY),
+                Constants.MAX_CACHE_BYTES, Constants.MAX_CACHE_ENTRY_BYTES);
         startThreadToCleanupDatabaseAndPurgeFileSystem();
     }
 
@@ -128,7 +138,6 @@ class StorageManager {
 
     void verifySpace(int destination, String path, long length) throws StopRequestException {
         resetBytesDownloadedSinceLastCheckOnSpace();
-        File dir = null;
         if (Constants.LOGV) {
             Log.i(Constants.TAG, "in verifySpace, destination: " + destination +
                     ", path: " + path + ", length: " + length);
@@ -136,33 +145,42 @@ class StorageManager {
         if (path == null) {
             throw new IllegalArgumentException("path can't be null");
         }
+        File dir = getVolumeRoot(destination, path);
+        if (dir == null) {
+            throw new IllegalStateException("invalid combination of destination: " + destination +
+                    ", path: " + path);
+        }
+        findSpace(dir, length, destination);
+    }
+
+    /**
+     * Return the root of the filesystem that a download with the given
+     * destination and path is written to, or null if it isn't one we manage.
+     */
+    File getVolumeRoot(int destination, String path) {
         switch (destination) {
             case Downloads.Impl.DESTINATION_CACHE_PARTITION:
             case Downloads.Impl.DESTINATION_CACHE_PARTITION_NOROAMING:
             case Downloads.Impl.DESTINATION_CACHE_PARTITION_PURGEABLE:
-                dir = mDownloadDataDir;
-                break;
+                return mDownloadDataDir;
             case Downloads.Impl.DESTINATION_EXTERNAL:
-                dir = mExternalStorageDir;
-                break;
+                return mExternalStorageDir;
             case Downloads.Impl.DESTINATION_SYSTEMCACHE_PARTITION:
-                dir = mSystemCacheDir;
-                break;
+                return mSystemCacheDir;
             case Downloads.Impl.DESTINATION_FILE_URI:
-                if (path.startsWith(mExternalStorageDir.getPath())) {
-                    dir = mExternalStorageDir;
+                if (path == null) {
+                    return null;
+                } else if (path.startsWith(mExternalStorageDir.getPath())) {
+                    return mExternalStorageDir;
                 } else if (path.startsWith(mDownloadDataDir.getPath())) {
-                    dir = mDownloadDataDir;
+                    return mDownloadDataDir;
                 } else if (path.startsWith(mSystemCacheDir.getPath())) {
-                    dir = mSystemCacheDir;
+                    return mSystemCacheDir;
                 }
-                break;
-         }
-        if (dir == null) {
-            throw new IllegalStateException("invalid combination of destination: " + destination +
-                    ", path: " + path);
+                return null;
+            default:
+                return null;
         }
-        findSpace(dir, length, destination);
     }
 
     /**
@@ -170,7 +188,7 @@ class StorageManager {
      * specified by the input param(targetBytes).
      * returns true if found. false otherwise.
      */
-    private synchronized void findSpace(File root, long targetBytes, int destination)
+    private void findSpace(File root, long targetBytes, int destination)
             throws StopRequestException {
         if (targetBytes == 0) {
             return;
@@ -189,8 +207,7 @@ class StorageManager {
              * threshold typically is 10% of download data dir space quota.
              * try to cleanup and see if the low space situation goes away.
              */
-            discardPurgeableFiles(destination, sDownloadDataDirLowSpaceThreshold);
-            removeSpuriousFiles();
+            discardFilesToMakeSpace(destination);
             bytesAvailable = getAvailableBytesInFileSystemAtGivenRoot(root);
             if (bytesAvailable < sDownloadDataDirLowSpaceThreshold) {
                 /*
@@ -221,8 +238,7 @@ class StorageManager {
             }
             if (bytesAvailable < targetBytes) {
                 // Insufficient space; make space.
-                discardPurgeableFiles(destination, sDownloadDataDirLowSpaceThreshold);
-                removeSpuriousFiles();
+                discardFilesToMakeSpace(destination);
                 bytesAvailable = getAvailableBytesInDownloadsDataDir(mDownloadDataDir);
             }
         }
@@ -233,6 +249,20 @@ class StorageManager {
         }
     }
 
+    /**
+     * Discard purgeable and spurious files. Serialized so concurrent downloads
+     * don't race to delete the same files, while downloads that already have
+     * enough space never wait behind this I/O.
+     */
+    private void discardFilesToMakeSpace(int destination) {
+        synchronized (mCleanupLock) {
+            // cached copies are only an optimization, so they go first
+            mCache.trim(0);
+            discardPurgeableFiles(destination, sDownloadDataDirLowSpaceThreshold);
+            removeSpuriousFiles();
+        }
+    }
+
     /**
      * returns the number of bytes available in the downloads data dir
      * TODO this implementation is too slow. optimize it.
@@ -292,6 +322,10 @@ class StorageManager {
         return mDownloadDataDir;
     }
 
+    DownloadCache getDownloadCache() {
+        return mCache;
+    }
+
     public static File getDownloadDataDirectory(Context context) {
         return context.getCacheDir();
     }
@@ -371,6 +405,8 @@ class StorageManager {
         if (listOfFiles != null) {
             files.addAll(Arrays.asList(listOfFiles));
         }
+        // cache keeps its own index
+        files.remove(mCache.getDirectory());
         if (files.size() == 0) {
             return;
         }
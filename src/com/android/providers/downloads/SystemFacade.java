@@ -52,6 +52,12 @@ interface SystemFacade {
      */
     public Long getRecommendedMaxBytesOverMobile();
 
+    /**
+     * @return bandwidth limit, in bytes per second, stored in the given global
+     * setting; or 0 if there's no limit.
+     */
+    public long getBandwidthLimit(String setting);
+
     /**
      * Send a broadcast intent.
      */
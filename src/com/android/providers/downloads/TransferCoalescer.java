@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.util.LongSparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+import com.google.android.collect.Maps;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of in-flight transfers, so that downloads of the same resource
+ * share a single transfer over the network. The first download to receive
+ * a response for a given URL and strong ETag leads; later downloads that receive
+ * the same response hang up and give back their thread, staying parked
+ * until the leader finishes. When started again they copy its finished
+ * file into their own destination, or request the response themselves if
+ * the leader failed.
+ */
+public class TransferCoalescer {
+
+    /**
+     * Single transfer shared by a leading download and its followers.
+     */
+    public static class Transfer {
+        private final String mKey;
+        private final long mLeaderId;
+        private final long mLength;
+
+        private volatile boolean mFinished;
+        private volatile String mFilename;
+        private volatile int mFollowers;
+
+        private volatile String mContentDisposition;
+        private volatile String mContentLocation;
+
+        private Transfer(String key, long leaderId, long length) {
+            mKey = key;
+            mLeaderId = leaderId;
+            mLength = length;
+        }
+
+        public boolean isLeader(long id) {
+            return mLeaderId == id;
+        }
+
+        public long getLeaderId() {
+            return mLeaderId;
+        }
+
+        public boolean isFinished() {
+            return mFinished;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+
+        /**
+         * Record the headers that name the response, so followers can
+         * choose their own filename without having kept the response.
+         */
+        public void setResponseHeaders(String contentDisposition, String contentLocation) {
+            mContentDisposition = contentDisposition;
+            mContentLocation = contentLocation;
+        }
+
+        public String getContentDisposition() {
+            return mContentDisposition;
+        }
+
+        public String getContentLocation() {
+            return mContentLocation;
+        }
+
+        /**
+         * Returns the finished file of the leader, or {@code null} when it
+         * failed or hasn't finished.
+         */
+        public String getFilename() {
+            return mFilename;
+        }
+    }
+
+    /** Invoked whenever a transfer finishes, so parked followers can start. */
+    private final Runnable mFinishedListener;
+
+    @GuardedBy("this")
+    private final HashMap<String, Transfer> mTransfers = Maps.newHashMap();
+
+    /** Transfer followed by each parked download, until it collects the result. */
+    @GuardedBy("this")
+    private final LongSparseArray<Transfer> mFollowing = new LongSparseArray<Transfer>();
+
+    @GuardedBy("this")
+    private long mShared;
+
+    public TransferCoalescer(Runnable finishedListener) {
+        mFinishedListener = finishedListener;
+    }
+
+    /**
+     * Attach to the transfer of the given response, or start leading a new
+     * transfer when none is running. A download that attaches as follower
+     * is parked until the transfer finishes. Responses with a weak ETag
+     * aren't guaranteed byte-identical, so they always lead alone.
+     *
+     * @param id of the calling download, which becomes leader when no
+     *            transfer is running.
+     * @param url final URL after following any redirects.
+     * @param length of the response, or -1 when unknown.
+     */
+    public synchronized Transfer join(long id, String url, String eTag, long length) {
+        final String key = url + '\n' + eTag;
+        if (!Helpers.isStrongETag(eTag)) {
+            return new Transfer(key, id, length);
+        }
+        Transfer transfer = mTransfers.get(key);
+        if (transfer == null || transfer.mLength != length) {
+            transfer = new Transfer(key, id, length);
+            mTransfers.put(key, transfer);
+        } else {
+            transfer.mFollowers++;
+            mFollowing.put(id, transfer);
+            mShared++;
+        }
+        return transfer;
+    }
+
+    /**
+     * Returns if the given download is parked following a transfer that
+     * hasn't finished yet.
+     */
+    public synchronized boolean isFollowing(long id) {
+        final Transfer transfer = mFollowing.get(id);
+        return transfer != null && !transfer.mFinished;
+    }
+
+    /**
+     * Detach the given download from the transfer it followed, once that
+     * transfer has finished.
+     *
+     * @return the finished transfer, or {@code null} when the download
+     *         wasn't following one, or it is still running.
+     */
+    public synchronized Transfer collect(long id) {
+        final Transfer transfer = mFollowing.get(id);
+        if (transfer == null || !transfer.mFinished) {
+            return null;
+        }
+        mFollowing.remove(id);
+        return transfer;
+    }
+
+    /**
+     * Forget any transfer followed by the given download, such as when it
+     * has been deleted.
+     */
+    public synchronized void forget(long id) {
+        mFollowing.remove(id);
+    }
+
+    /**
+     * Called by the leader once it has finished, releasing all followers.
+     *
+     * @param filename of the completed file, or {@code null} when the
+     *            transfer failed and followers should continue on their own.
+     */
+    public void finish(Transfer transfer, String filename) {
+        synchronized (this) {
+            if (mTransfers.get(transfer.mKey) == transfer) {
+                mTransfers.remove(transfer.mKey);
+            }
+            transfer.mFilename = filename;
+            transfer.mFinished = true;
+        }
+        if (transfer.mFollowers > 0 && mFinishedListener != null) {
+            mFinishedListener.run();
+        }
+    }
+
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("TransferCoalescer:");
+        pw.increaseIndent();
+        pw.printPair("shared", mShared);
+        pw.printPair("parked", mFollowing.size());
+        pw.println();
+        for (Map.Entry<String, Transfer> entry : mTransfers.entrySet()) {
+            final Transfer transfer = entry.getValue();
+            pw.printPair("leader", transfer.mLeaderId);
+            pw.printPair("followers", transfer.mFollowers);
+            pw.println();
+        }
+        pw.decreaseIndent();
+    }
+}
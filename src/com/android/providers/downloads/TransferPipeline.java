@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static android.provider.Downloads.Impl.STATUS_FILE_ERROR;
+
+import android.os.Process;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Two-stage transfer that decouples reading from the network and writing to
+ * disk. The reading thread fills buffers and hands them to the writer through
+ * a bounded ring of reusable buffers; when the ring is full the reader blocks
+ * until the writer catches up, providing backpressure.
+ * <p>
+ * Writers don't own a thread. Whenever a pipeline has filled buffers it is
+ * scheduled onto the writer for the storage volume it targets, which drains
+ * what is queued and yields, so disk work for any number of downloads is
+ * multiplexed over one thread per volume. A slow volume, such as a busy SD
+ * card, only holds back downloads written to that same volume.
+ * <p>
+ * Failures from the writer are surfaced to the reader as the original
+ * {@link StopRequestException} on its next interaction with the pipeline.
+ */
+class TransferPipeline {
+
+    /**
+     * Destination that data is written into, always called from a writer
+     * thread in the order buffers were submitted.
+     */
+    public interface Sink {
+        /**
+         * Write all remaining data in the given buffer at the given position.
+         */
+        public void write(ByteBuffer data, long position) throws StopRequestException;
+    }
+
+    /** How often a blocked reader checks for writer failure. */
+    private static final long FAILURE_POLL_INTERVAL = 500;
+
+    /** Marker submitted to tell the writer that no more data will arrive. */
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    /** Writers keyed by the root of the storage volume they write to. */
+    private static final HashMap<String, ThreadPoolExecutor> sWriters =
+            new HashMap<String, ThreadPoolExecutor>();
+
+    /**
+     * Return the writer shared by all pipelines targeting the given volume,
+     * creating it on first use. Idle writers release their thread.
+     */
+    static Executor getWriter(File volume) {
+        final String key = (volume != null) ? volume.getPath() : "";
+        synchronized (sWriters) {
+            ThreadPoolExecutor executor = sWriters.get(key);
+            if (executor == null) {
+                executor = buildWriterExecutor(key);
+                sWriters.put(key, executor);
+            }
+            return executor;
+        }
+    }
+
+    private static ThreadPoolExecutor buildWriterExecutor(final String volume) {
+        final ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "DownloadWriter " + volume);
+            }
+        };
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private final Sink mSink;
+    private final Executor mWriter;
+    private final BlockingQueue<ByteBuffer> mFree;
+    private final BlockingQueue<ByteBuffer> mFilled;
+
+    /** Set while a drain of this pipeline is queued or running on a writer. */
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    /** Released once the writer has consumed END_OF_STREAM or failed. */
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /** Position where the next filled buffer will be written. */
+    private volatile long mCommitted;
+
+    private volatile StopRequestException mFailure;
+
+    public TransferPipeline(
+            Sink sink, File volume, long position, int ringSize, int bufferSize) {
+        mSink = sink;
+        mWriter = getWriter(volume);
+        mCommitted = position;
+        mFree = new ArrayBlockingQueue<ByteBuffer>(ringSize);
+        // one extra slot so END_OF_STREAM never blocks
+        mFilled = new ArrayBlockingQueue<ByteBuffer>(ringSize + 1);
+        for (int i = 0; i < ringSize; i++) {
+            mFree.add(ByteBuffer.allocate(bufferSize));
+        }
+    }
+
+    /**
+     * Return the file position up to which data has been written by the
+     * writer thread; data still queued in the ring isn't included.
+     */
+    public long getCommitted() {
+        return mCommitted;
+    }
+
+    /**
+     * Take an empty buffer to fill, blocking while the ring is full.
+     */
+    public ByteBuffer acquire() throws StopRequestException {
+        return acquire(0);
+    }
+
+    /**
+     * Take an empty buffer holding at least the given number of bytes,
+     * blocking while the ring is full. Buffers start small and are only
+     * replaced with larger ones once a transfer asks for them.
+     */
+    public ByteBuffer acquire(int capacity) throws StopRequestException {
+        try {
+            ByteBuffer buffer;
+            do {
+                throwIfFailed();
+                buffer = mFree.poll(FAILURE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } while (buffer == null);
+            if (buffer.capacity() < capacity) {
+                buffer = ByteBuffer.allocate(capacity);
+            }
+            buffer.clear();
+            return buffer;
+        } catch (InterruptedException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+    }
+
+    /**
+     * Hand a filled buffer, between its position and limit, to the writer.
+     */
+    public void submit(ByteBuffer buffer) throws StopRequestException {
+        throwIfFailed();
+        mFilled.add(buffer);
+        schedule();
+    }
+
+    /**
+     * Return an acquired buffer without writing it.
+     */
+    public void release(ByteBuffer buffer) {
+        mFree.add(buffer);
+    }
+
+    /**
+     * Wait for all submitted data to be written, throwing any writer failure.
+     */
+    public void finish() throws StopRequestException {
+        mFilled.add(END_OF_STREAM);
+        schedule();
+        await();
+        throwIfFailed();
+    }
+
+    /**
+     * Write any buffers already submitted and stop the writer, ignoring any
+     * failure. Safe to call after {@link #finish()}.
+     */
+    public void close() {
+        mFilled.offer(END_OF_STREAM);
+        schedule();
+        await();
+    }
+
+    private void await() {
+        try {
+            mDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void throwIfFailed() throws StopRequestException {
+        final StopRequestException failure = mFailure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void schedule() {
+        if (mDone.getCount() > 0 && mScheduled.compareAndSet(false, true)) {
+            mWriter.execute(mDrain);
+        }
+    }
+
+    /**
+     * Write everything currently queued, then give up the writer thread so
+     * other pipelines get their turn.
+     */
+    private void drain() {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = mFilled.poll()) != null) {
+                if (buffer == END_OF_STREAM) {
+                    mDone.countDown();
+                    return;
+                }
+
+                final int length = buffer.remaining();
+                mSink.write(buffer, mCommitted);
+                mCommitted += length;
+                mFree.add(buffer);
+            }
+        } catch (StopRequestException e) {
+            mFailure = e;
+            mDone.countDown();
+        } catch (RuntimeException e) {
+            mFailure = new StopRequestException(STATUS_FILE_ERROR, e);
+            mDone.countDown();
+        } finally {
+            mScheduled.set(false);
+        }
+
+        // catch buffers submitted after we stopped polling
+        if (!mFilled.isEmpty()) {
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link BandwidthLimiter} budgets.
+ */
+@SmallTest
+public class BandwidthLimiterTest extends AndroidTestCase {
+    private final MockitoHelper mMockitoHelper = new MockitoHelper();
+
+    private SystemFacade mSystemFacade;
+    private BandwidthLimiter mLimiter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockitoHelper.setUp(getClass());
+        System.setProperty("dexmaker.dexcache", getContext().getCacheDir().toString());
+
+        mSystemFacade = mock(SystemFacade.class);
+        mLimiter = new BandwidthLimiter();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mMockitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testUnlimited() throws Exception {
+        mLimiter.updateLimits(mSystemFacade);
+        assertEquals(0, mLimiter.reserve(1000, "com.example", 10 * 1024 * 1024));
+    }
+
+    public void testGlobalLimit() throws Exception {
+        when(mSystemFacade.getBandwidthLimit(BandwidthLimiter.SETTING_GLOBAL_LIMIT))
+                .thenReturn(1000L);
+        mLimiter.updateLimits(mSystemFacade);
+
+        // first half second is allowed as burst
+        assertEquals(0, mLimiter.reserve(1000, "com.example", 500));
+
+        // still within burst, so a second of data from a different app is
+        // admitted, but whatever follows has to wait for it
+        assertEquals(0, mLimiter.reserve(1001, "com.other", 1000));
+        final long delay = mLimiter.reserve(1001, "com.other", 100);
+        assertTrue("Unexpected delay " + delay, delay > 800 && delay <= 1000);
+    }
+
+    public void testUidLimitIsolated() throws Exception {
+        when(mSystemFacade.getBandwidthLimit(BandwidthLimiter.SETTING_UID_LIMIT))
+                .thenReturn(1000L);
+        mLimiter.updateLimits(mSystemFacade);
+
+        assertEquals(0, mLimiter.reserve(1000, "com.example", 500));
+        assertEquals(0, mLimiter.reserve(1000, "com.example", 1000));
+        assertTrue(mLimiter.reserve(1000, "com.example", 100) > 0);
+
+        // other UIDs have their own budget
+        assertEquals(0, mLimiter.reserve(1001, "com.other", 500));
+    }
+
+    public void testWaitingDoesNotHoldGlobalBudget() throws Exception {
+        when(mSystemFacade.getBandwidthLimit(BandwidthLimiter.SETTING_GLOBAL_LIMIT))
+                .thenReturn(1000L);
+        when(mSystemFacade.getBandwidthLimit(BandwidthLimiter.SETTING_UID_LIMIT))
+                .thenReturn(100L);
+        mLimiter.updateLimits(mSystemFacade);
+
+        // a second of UID budget, then that UID keeps getting turned away
+        assertEquals(0, mLimiter.reserve(1000, "com.example", 100));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mLimiter.reserve(1000, "com.example", 100) > 0);
+        }
+
+        // rejected attempts charged nothing globally, so another app still
+        // has most of its burst available
+        assertEquals(0, mLimiter.reserve(1001, "com.other", 300));
+        assertEquals(0, mLimiter.reserve(1001, "com.other", 100));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Tests for {@link CheckpointedDigest} hashing and checkpoints.
+ */
+@SmallTest
+public class CheckpointedDigestTest extends AndroidTestCase {
+
+    public void testKnownVectors() throws Exception {
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+                new CheckpointedDigest().finish());
+
+        final CheckpointedDigest digest = new CheckpointedDigest();
+        final byte[] abc = "abc".getBytes();
+        digest.update(abc, 0, abc.length);
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                digest.finish());
+    }
+
+    public void testMatchesMessageDigest() throws Exception {
+        final byte[] data = new byte[10000];
+        new Random(42).nextBytes(data);
+
+        final CheckpointedDigest digest = new CheckpointedDigest();
+        int offset = 0;
+        for (int i = 0; offset < data.length; i++) {
+            // uneven chunks straddling block boundaries
+            final int count = Math.min(1 + (i * 37) % 700, data.length - offset);
+            digest.update(ByteBuffer.wrap(data, offset, count));
+            offset += count;
+        }
+
+        assertEquals(data.length, digest.getLength());
+        assertEquals(expected(data, data.length), digest.finish());
+    }
+
+    public void testSaveRestore() throws Exception {
+        final byte[] data = new byte[1000];
+        new Random(7).nextBytes(data);
+
+        final CheckpointedDigest digest = new CheckpointedDigest();
+        digest.update(data, 0, 333);
+        assertEquals(expected(data, 333), digest.finish());
+
+        final CheckpointedDigest restored = CheckpointedDigest.restore(digest.save());
+        assertEquals(333, restored.getLength());
+        restored.update(data, 333, data.length - 333);
+        assertEquals(expected(data, data.length), restored.finish());
+    }
+
+    public void testRestoreMalformed() throws Exception {
+        assertNull(CheckpointedDigest.restore(null));
+        assertNull(CheckpointedDigest.restore("garbage"));
+        assertNull(CheckpointedDigest.restore("3:00:"));
+
+        final CheckpointedDigest digest = new CheckpointedDigest();
+        digest.update(new byte[5], 0, 5);
+        final String saved = digest.save();
+        assertNull(CheckpointedDigest.restore("6" + saved.substring(1)));
+    }
+
+    private static String expected(byte[] data, int count) throws Exception {
+        final MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(data, 0, count);
+        final StringBuilder builder = new StringBuilder();
+        for (byte b : md.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+}
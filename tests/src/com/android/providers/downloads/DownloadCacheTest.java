@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests for {@link DownloadCache} isolation between apps and lifetime of
+ * entries.
+ */
+@MediumTest
+public class DownloadCacheTest extends AndroidTestCase {
+    private static final String URL = "http://example.com/file";
+    private static final int UID_A = 10001;
+    private static final int UID_B = 10002;
+
+    private RenamingDelegatingContext mContext;
+    private File mDirectory;
+    private File mSource;
+    private DownloadCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), "test.");
+        mContext.deleteDatabase("download_cache.db");
+        mDirectory = new File(getContext().getCacheDir(), "test_download_cache");
+        mSource = new File(getContext().getCacheDir(), "test_download_source");
+        writeSource(mSource);
+        mCache = new DownloadCache(mContext, mDirectory, 1024 * 1024, 1024);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.trim(0);
+        mSource.delete();
+        mContext.deleteDatabase("download_cache.db");
+        super.tearDown();
+    }
+
+    public void testEntriesPrivateToUid() throws Exception {
+        mCache.put(1, UID_A, URL, "\"v1\"", null, "text/plain", null, mSource);
+
+        assertEquals(1, mCache.get(UID_A, URL).mDownloadId);
+        assertNull(mCache.get(UID_B, URL));
+    }
+
+    public void testRemovedWithSourceDownload() throws Exception {
+        mCache.put(1, UID_A, URL, "\"v1\"", null, "text/plain", null, mSource);
+        mCache.put(2, UID_B, URL, "\"v1\"", null, "text/plain", null, mSource);
+
+        mCache.removeDownload(1);
+        assertNull(mCache.get(UID_A, URL));
+        assertNotNull(mCache.get(UID_B, URL));
+
+        mCache.retainDownloads(Sets.<Long>newHashSet());
+        assertNull(mCache.get(UID_B, URL));
+    }
+
+    public void testPrivateCacheControl() throws Exception {
+        assertFalse(DownloadThread.isCacheControlPrivate(null));
+        assertFalse(DownloadThread.isCacheControlPrivate("public, max-age=60"));
+        assertTrue(DownloadThread.isCacheControlPrivate("no-store"));
+        assertTrue(DownloadThread.isCacheControlPrivate("max-age=0, Private=\"Set-Cookie\""));
+    }
+
+    private static void writeSource(File file) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[128]);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.provider.Downloads;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Tests for {@link DownloadInfo.Reader}, including a benchmark of reading a
+ * large cursor as done by every update pass, against the reader it replaced.
+ */
+@LargeTest
+public class DownloadInfoReaderTest extends AndroidTestCase {
+    private static final String TAG = "DownloadInfoReaderTest";
+
+    private static final int ROWS = 10000;
+    private static final int PASSES = 5;
+
+    public void testReadsRow() throws Exception {
+        final Cursor cursor = buildCursor(DownloadInfo.Reader.PROJECTION, 1);
+        try {
+            cursor.moveToFirst();
+            final DownloadInfo.Reader reader = new DownloadInfo.Reader(cursor);
+            final DownloadInfo info = newInfo();
+            reader.updateFromDatabase(info);
+
+            assertEquals(0, info.mId);
+            assertEquals(0, reader.getChangeSeq());
+            assertEquals("http://example.com/0", info.mUri);
+            assertEquals(Downloads.Impl.STATUS_SUCCESS, info.mStatus);
+            assertEquals(1024, info.mTotalBytes);
+            assertTrue(info.mAllowMetered);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testBenchmarkPass() throws Exception {
+        // the old reader queried without projection, so it saw every column
+        final Cursor full = buildCursor(ALL_COLUMNS, ROWS);
+        final Cursor projected = buildCursor(DownloadInfo.Reader.PROJECTION, ROWS);
+        final DownloadInfo info = newInfo();
+        try {
+            long byName = Long.MAX_VALUE;
+            long byIndex = Long.MAX_VALUE;
+            for (int pass = 0; pass < PASSES; pass++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                full.moveToPosition(-1);
+                while (full.moveToNext()) {
+                    readByName(full, info);
+                }
+                byName = Math.min(byName, SystemClock.elapsedRealtimeNanos() - start);
+                assertEquals(ROWS - 1, info.mId);
+
+                start = SystemClock.elapsedRealtimeNanos();
+                projected.moveToPosition(-1);
+                final DownloadInfo.Reader reader = new DownloadInfo.Reader(projected);
+                while (projected.moveToNext()) {
+                    reader.updateFromDatabase(info);
+                }
+                byIndex = Math.min(byIndex, SystemClock.elapsedRealtimeNanos() - start);
+                assertEquals(ROWS - 1, info.mId);
+            }
+
+            Log.i(TAG, "Pass over " + ROWS + " rows: by name over " + ALL_COLUMNS.length
+                    + " columns " + (byName / 1000) + "us, by index over "
+                    + DownloadInfo.Reader.PROJECTION.length + " columns " + (byIndex / 1000)
+                    + "us");
+        } finally {
+            full.close();
+            projected.close();
+        }
+    }
+
+    private DownloadInfo newInfo() {
+        return new DownloadInfo(getContext(), null, null, null, null, null, null, null, null);
+    }
+
+    /**
+     * Build a cursor holding the given columns, filled as the provider would
+     * for a completed download.
+     */
+    private static Cursor buildCursor(String[] columns, int rows) {
+        final MatrixCursor cursor = new MatrixCursor(columns, rows);
+        for (int i = 0; i < rows; i++) {
+            final Object[] row = new Object[columns.length];
+            for (int j = 0; j < columns.length; j++) {
+                row[j] = 0;
+            }
+            set(columns, row, Downloads.Impl._ID, i);
+            set(columns, row, Downloads.Impl.COLUMN_URI, "http://example.com/" + i);
+            set(columns, row, Downloads.Impl.COLUMN_STATUS, Downloads.Impl.STATUS_SUCCESS);
+            set(columns, row, Downloads.Impl.COLUMN_TOTAL_BYTES, 1024);
+            set(columns, row, Downloads.Impl.COLUMN_ALLOW_METERED, 1);
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static void set(String[] columns, Object[] row, String column, Object value) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) {
+                row[i] = value;
+                return;
+            }
+        }
+        throw new IllegalArgumentException(column);
+    }
+
+    /**
+     * Every column of the downloads table, as returned to the old reader.
+     */
+    private static final String[] ALL_COLUMNS = new String[] {
+        Downloads.Impl._ID,
+        Downloads.Impl.COLUMN_URI,
+        Constants.RETRY_AFTER_X_REDIRECT_COUNT,
+        Downloads.Impl.COLUMN_APP_DATA,
+        Downloads.Impl.COLUMN_NO_INTEGRITY,
+        Downloads.Impl.COLUMN_FILE_NAME_HINT,
+        Constants.OTA_UPDATE,
+        Downloads.Impl._DATA,
+        Downloads.Impl.COLUMN_MIME_TYPE,
+        Downloads.Impl.COLUMN_DESTINATION,
+        Constants.NO_SYSTEM_FILES,
+        Downloads.Impl.COLUMN_VISIBILITY,
+        Downloads.Impl.COLUMN_CONTROL,
+        Downloads.Impl.COLUMN_STATUS,
+        Downloads.Impl.COLUMN_FAILED_CONNECTIONS,
+        Downloads.Impl.COLUMN_LAST_MODIFICATION,
+        Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE,
+        Downloads.Impl.COLUMN_NOTIFICATION_CLASS,
+        Downloads.Impl.COLUMN_NOTIFICATION_EXTRAS,
+        Downloads.Impl.COLUMN_COOKIE_DATA,
+        Downloads.Impl.COLUMN_USER_AGENT,
+        Downloads.Impl.COLUMN_REFERER,
+        Downloads.Impl.COLUMN_TOTAL_BYTES,
+        Downloads.Impl.COLUMN_CURRENT_BYTES,
+        Constants.ETAG,
+        Constants.UID,
+        Downloads.Impl.COLUMN_OTHER_UID,
+        Downloads.Impl.COLUMN_TITLE,
+        Downloads.Impl.COLUMN_DESCRIPTION,
+        Constants.MEDIA_SCANNED,
+        Downloads.Impl.COLUMN_IS_PUBLIC_API,
+        Downloads.Impl.COLUMN_ALLOW_ROAMING,
+        Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES,
+        Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI,
+        Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT,
+        Downloads.Impl.COLUMN_MEDIAPROVIDER_URI,
+        Downloads.Impl.COLUMN_DELETED,
+        Downloads.Impl.COLUMN_ERROR_MSG,
+        Downloads.Impl.COLUMN_ALLOW_METERED,
+        Constants.PRIORITY,
+        Constants.SEGMENTS,
+        Constants.CONTENT_ENCODING,
+        Constants.EXPECTED_HASH,
+        Constants.DIGEST_STATE,
+        Constants.CHANGE_SEQ,
+    };
+
+    /**
+     * Baseline copied from the reader before column indexes were resolved
+     * once per cursor: every column is looked up by name, and boxed, for
+     * every row.
+     */
+    private static void readByName(Cursor cursor, DownloadInfo info) {
+        info.mId = getLong(cursor, Downloads.Impl._ID);
+        info.mUri = getString(cursor, Downloads.Impl.COLUMN_URI);
+        info.mNoIntegrity = getInt(cursor, Downloads.Impl.COLUMN_NO_INTEGRITY) == 1;
+        info.mHint = getString(cursor, Downloads.Impl.COLUMN_FILE_NAME_HINT);
+        info.mFileName = getString(cursor, Downloads.Impl._DATA);
+        info.mMimeType = getString(cursor, Downloads.Impl.COLUMN_MIME_TYPE);
+        info.mDestination = getInt(cursor, Downloads.Impl.COLUMN_DESTINATION);
+        info.mVisibility = getInt(cursor, Downloads.Impl.COLUMN_VISIBILITY);
+        info.mPriority = getInt(cursor, Constants.PRIORITY);
+        final boolean active = info.isActive();
+        if (!active) {
+            info.mStatus = getInt(cursor, Downloads.Impl.COLUMN_STATUS);
+        }
+        info.mNumFailed = getInt(cursor, Downloads.Impl.COLUMN_FAILED_CONNECTIONS);
+        int retryRedirect = getInt(cursor, Constants.RETRY_AFTER_X_REDIRECT_COUNT);
+        info.mRetryAfter = retryRedirect & 0xfffffff;
+        info.mLastMod = getLong(cursor, Downloads.Impl.COLUMN_LAST_MODIFICATION);
+        info.mPackage = getString(cursor, Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE);
+        info.mClass = getString(cursor, Downloads.Impl.COLUMN_NOTIFICATION_CLASS);
+        info.mExtras = getString(cursor, Downloads.Impl.COLUMN_NOTIFICATION_EXTRAS);
+        info.mCookies = getString(cursor, Downloads.Impl.COLUMN_COOKIE_DATA);
+        info.mUserAgent = getString(cursor, Downloads.Impl.COLUMN_USER_AGENT);
+        info.mReferer = getString(cursor, Downloads.Impl.COLUMN_REFERER);
+        info.mTotalBytes = getLong(cursor, Downloads.Impl.COLUMN_TOTAL_BYTES);
+        if (!active) {
+            info.mCurrentBytes = getLong(cursor, Downloads.Impl.COLUMN_CURRENT_BYTES);
+        }
+        info.mETag = getString(cursor, Constants.ETAG);
+        info.mSegments = getString(cursor, Constants.SEGMENTS);
+        info.mContentEncoding = getString(cursor, Constants.CONTENT_ENCODING);
+        info.mExpectedHash = getString(cursor, Constants.EXPECTED_HASH);
+        info.mDigestState = getString(cursor, Constants.DIGEST_STATE);
+        info.mUid = getInt(cursor, Constants.UID);
+        info.mMediaScanned = getInt(cursor, Constants.MEDIA_SCANNED);
+        info.mDeleted = getInt(cursor, Downloads.Impl.COLUMN_DELETED) == 1;
+        info.mMediaProviderUri = getString(cursor, Downloads.Impl.COLUMN_MEDIAPROVIDER_URI);
+        info.mIsPublicApi = getInt(cursor, Downloads.Impl.COLUMN_IS_PUBLIC_API) != 0;
+        info.mAllowedNetworkTypes = getInt(cursor, Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES);
+        info.mAllowRoaming = getInt(cursor, Downloads.Impl.COLUMN_ALLOW_ROAMING) != 0;
+        info.mAllowMetered = getInt(cursor, Downloads.Impl.COLUMN_ALLOW_METERED) != 0;
+        info.mTitle = getString(cursor, Downloads.Impl.COLUMN_TITLE);
+        info.mDescription = getString(cursor, Downloads.Impl.COLUMN_DESCRIPTION);
+        info.mBypassRecommendedSizeLimit =
+                getInt(cursor, Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT);
+
+        info.mControl = getInt(cursor, Downloads.Impl.COLUMN_CONTROL);
+    }
+
+    private static String getString(Cursor cursor, String column) {
+        int index = cursor.getColumnIndexOrThrow(column);
+        String s = cursor.getString(index);
+        return (TextUtils.isEmpty(s)) ? null : s;
+    }
+
+    private static Integer getInt(Cursor cursor, String column) {
+        return cursor.getInt(cursor.getColumnIndexOrThrow(column));
+    }
+
+    private static Long getLong(Cursor cursor, String column) {
+        return cursor.getLong(cursor.getColumnIndexOrThrow(column));
+    }
+}
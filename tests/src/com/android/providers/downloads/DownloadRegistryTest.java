@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.DownloadRegistry.BUCKET_COMPLETED;
+import static com.android.providers.downloads.DownloadRegistry.BUCKET_RUNNABLE;
+import static com.android.providers.downloads.DownloadRegistry.BUCKET_WAITING_FOR_NETWORK;
+import static com.android.providers.downloads.DownloadRegistry.BUCKET_WAITING_TO_RETRY;
+
+import android.provider.Downloads;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link DownloadRegistry} bucketing.
+ */
+@SmallTest
+public class DownloadRegistryTest extends AndroidTestCase {
+
+    private static final long NOW = 1000000;
+
+    public void testMovesBetweenBuckets() throws Exception {
+        final DownloadRegistry registry = new DownloadRegistry();
+        final DownloadInfo info = buildInfo(1, Downloads.Impl.STATUS_PENDING);
+        registry.put(info, NOW);
+        assertEquals(1, registry.getBucket(BUCKET_RUNNABLE).size());
+
+        info.mStatus = Downloads.Impl.STATUS_WAITING_FOR_NETWORK;
+        registry.put(info, NOW);
+        assertEquals(0, registry.getBucket(BUCKET_RUNNABLE).size());
+        assertEquals(1, registry.getBucket(BUCKET_WAITING_FOR_NETWORK).size());
+
+        info.mStatus = Downloads.Impl.STATUS_SUCCESS;
+        info.mVisibility = Downloads.Impl.VISIBILITY_HIDDEN;
+        registry.put(info, NOW);
+        assertEquals(0, registry.getBucket(BUCKET_WAITING_FOR_NETWORK).size());
+        assertEquals(1, registry.getBucket(BUCKET_COMPLETED).size());
+        assertTrue(registry.getNotifiable().isEmpty());
+
+        assertSame(info, registry.remove(1));
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.getBucket(BUCKET_COMPLETED).size());
+    }
+
+    public void testRetryBecomesDue() throws Exception {
+        final DownloadRegistry registry = new DownloadRegistry();
+        final DownloadInfo info = buildInfo(1, Downloads.Impl.STATUS_WAITING_TO_RETRY);
+        info.mNumFailed = 1;
+        info.mRetryAfter = 5000;
+        info.mLastMod = NOW;
+        registry.put(info, NOW);
+
+        assertEquals(1, registry.getBucket(BUCKET_WAITING_TO_RETRY).size());
+        assertEquals(NOW + 5000, registry.getNextRetry());
+
+        registry.pollDueRetries(NOW + 4999);
+        assertEquals(1, registry.getBucket(BUCKET_WAITING_TO_RETRY).size());
+
+        registry.pollDueRetries(NOW + 5000);
+        assertEquals(0, registry.getBucket(BUCKET_WAITING_TO_RETRY).size());
+        assertEquals(1, registry.getBucket(BUCKET_RUNNABLE).size());
+        assertEquals(Long.MAX_VALUE, registry.getNextRetry());
+    }
+
+    public void testMissingMediaStaysRunnable() throws Exception {
+        final DownloadRegistry registry = new DownloadRegistry();
+        final DownloadInfo info = buildInfo(1, Downloads.Impl.STATUS_DEVICE_NOT_FOUND_ERROR);
+        registry.put(info, NOW);
+
+        assertEquals(1, registry.getBucket(BUCKET_RUNNABLE).size());
+        assertEquals(0, registry.getBucket(BUCKET_COMPLETED).size());
+    }
+
+    private DownloadInfo buildInfo(long id, int status) {
+        final DownloadInfo info = new DownloadInfo(
+                getContext(), null, null, null, null, null, null, null, null);
+        info.mId = id;
+        info.mStatus = status;
+        return info;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.DownloadScheduler.PRIORITY_BACKGROUND;
+import static com.android.providers.downloads.DownloadScheduler.PRIORITY_FOREGROUND;
+import static com.android.providers.downloads.DownloadScheduler.PRIORITY_NORMAL;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.google.android.collect.Lists;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link DownloadScheduler} ordering, preemption and host limits.
+ */
+@MediumTest
+public class DownloadSchedulerTest extends AndroidTestCase {
+    private static final long TIMEOUT = 2000;
+
+    private final MockitoHelper mMockitoHelper = new MockitoHelper();
+
+    private final Semaphore mStarted = new Semaphore(0);
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final List<DownloadThread> mStartOrder =
+            Collections.synchronizedList(Lists.<DownloadThread>newArrayList());
+
+    private DownloadScheduler mScheduler;
+    private int mNextUid = 10000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockitoHelper.setUp(getClass());
+        System.setProperty("dexmaker.dexcache", getContext().getCacheDir().toString());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRelease.countDown();
+        if (mScheduler != null) {
+            mScheduler.shutdownNow();
+        }
+        mMockitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testOldLowPriorityAgesPastNewWork() throws Exception {
+        mScheduler = new DownloadScheduler(1, 4);
+        final long now = SystemClock.elapsedRealtime();
+
+        final DownloadThread blocker = buildThread(PRIORITY_FOREGROUND, "a.example.com", 0);
+        mScheduler.submit(blocker);
+        assertTrue(mStarted.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // queued long enough ago to outrank a foreground download enqueued now,
+        // as happens when a preempted download returns to the queue
+        final long aged = now - 2 * Constants.SCHEDULER_AGING_STEP
+                - Constants.SCHEDULER_FAIR_QUANTUM;
+        final DownloadThread fresh = buildThread(PRIORITY_FOREGROUND, "b.example.com", now);
+        final DownloadThread old = buildThread(PRIORITY_BACKGROUND, "c.example.com", aged);
+        final DownloadThread normal = buildThread(PRIORITY_NORMAL, "d.example.com", now);
+        mScheduler.submit(normal);
+        mScheduler.submit(fresh);
+        mScheduler.submit(old);
+
+        mRelease.countDown();
+        assertTrue(mStarted.tryAcquire(3, TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Lists.newArrayList(blocker, old, fresh, normal), mStartOrder);
+    }
+
+    public void testPreemptsLowerClassWhenFull() throws Exception {
+        mScheduler = new DownloadScheduler(1, 4);
+
+        final DownloadThread background = buildThread(PRIORITY_BACKGROUND, "a.example.com", 0);
+        mScheduler.submit(background);
+        assertTrue(mStarted.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        mScheduler.submit(buildThread(PRIORITY_FOREGROUND, "b.example.com", 0));
+        verify(background, timeout(TIMEOUT)).preempt();
+    }
+
+    public void testDoesNotPreemptSameClass() throws Exception {
+        mScheduler = new DownloadScheduler(1, 4);
+
+        final DownloadThread running = buildThread(PRIORITY_NORMAL, "a.example.com", 0);
+        mScheduler.submit(running);
+        assertTrue(mStarted.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        mScheduler.submit(buildThread(PRIORITY_NORMAL, "b.example.com", 0));
+        SystemClock.sleep(200);
+        verify(running, never()).preempt();
+    }
+
+    public void testHostLimitParksExtraDownloads() throws Exception {
+        mScheduler = new DownloadScheduler(4, 2);
+
+        mScheduler.submit(buildThread(PRIORITY_NORMAL, "a.example.com", 0));
+        mScheduler.submit(buildThread(PRIORITY_NORMAL, "a.example.com", 0));
+        final DownloadThread parked = buildThread(PRIORITY_NORMAL, "a.example.com", 0);
+        mScheduler.submit(parked);
+        assertTrue(mStarted.tryAcquire(2, TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(mStarted.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        // other hosts still get threads while the first one is saturated
+        final DownloadThread other = buildThread(PRIORITY_NORMAL, "b.example.com", 0);
+        mScheduler.submit(other);
+        assertTrue(mStarted.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertSame(other, mStartOrder.get(2));
+
+        // and parked work is dispatched as soon as the host frees up
+        mRelease.countDown();
+        assertTrue(mStarted.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertSame(parked, mStartOrder.get(3));
+    }
+
+    public void testMalformedUrlsDoNotShareHostLimit() throws Exception {
+        mScheduler = new DownloadScheduler(4, 1);
+
+        mScheduler.submit(buildThread(PRIORITY_NORMAL, null, 0));
+        mScheduler.submit(buildThread(PRIORITY_NORMAL, null, 0));
+        mScheduler.submit(buildThread(PRIORITY_NORMAL, "", 0));
+        assertTrue(mStarted.tryAcquire(3, TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private DownloadThread buildThread(int priorityClass, String host, long enqueueTime) {
+        final DownloadThread thread = mock(DownloadThread.class);
+        when(thread.getPriorityClass()).thenReturn(priorityClass);
+        when(thread.getDownloadId()).thenReturn((long) mNextUid);
+        when(thread.getUid()).thenReturn(mNextUid++);
+        when(thread.getHost()).thenReturn(host);
+        when(thread.getEnqueueTime()).thenReturn(enqueueTime);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                mStartOrder.add(thread);
+                mStarted.release();
+                mRelease.await();
+                return null;
+            }
+        }).when(thread).run();
+        return thread;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link DownloadSegment} layout and persistence.
+ */
+@SmallTest
+public class DownloadSegmentTest extends AndroidTestCase {
+
+    public void testSplitCoversLength() throws Exception {
+        final DownloadSegment[] segments = DownloadSegment.split(1001, 4);
+        assertEquals(4, segments.length);
+        assertEquals(0, segments[0].start);
+        for (int i = 1; i < segments.length; i++) {
+            assertEquals(segments[i - 1].end, segments[i].start);
+        }
+        assertEquals(1001, segments[3].end);
+    }
+
+    public void testProgress() throws Exception {
+        final DownloadSegment[] segments = DownloadSegment.split(100, 2);
+        segments[0].advance(10);
+        segments[1].advance(50);
+
+        assertEquals(10, segments[0].getPosition());
+        assertEquals(100, segments[1].getPosition());
+        assertFalse(segments[0].isComplete());
+        assertTrue(segments[1].isComplete());
+        assertEquals(60, DownloadSegment.sumCurrent(segments));
+    }
+
+    public void testFormatParse() throws Exception {
+        final DownloadSegment[] segments = DownloadSegment.split(100, 2);
+        segments[0].advance(12);
+
+        final String value = DownloadSegment.format(segments);
+        assertEquals("0-50:12,50-100:0", value);
+
+        final DownloadSegment[] parsed = DownloadSegment.parse(value);
+        assertEquals(2, parsed.length);
+        assertEquals(12, parsed[0].getPosition());
+        assertEquals(50, parsed[1].getPosition());
+        assertEquals(12, DownloadSegment.sumCurrent(parsed));
+    }
+
+    public void testParseInvalid() throws Exception {
+        assertNull(DownloadSegment.parse(null));
+        assertNull(DownloadSegment.parse(""));
+        assertNull(DownloadSegment.parse("0-50"));
+        assertNull(DownloadSegment.parse("0-50:51"));
+        assertNull(DownloadSegment.parse("a-b:c"));
+    }
+}
@@ -72,6 +72,11 @@ public class FakeSystemFacade implements SystemFacade {
         return mRecommendedMaxBytesOverMobile ;
     }
 
+    @Override
+    public long getBandwidthLimit(String setting) {
+        return 0;
+    }
+
     @Override
     public void sendBroadcast(Intent intent) {
         mBroadcastsSent.add(intent);
@@ -41,4 +41,10 @@ public class HelpersTest extends AndroidTestCase {
       assertEquals(hint, fileName);
     }
 
+    public void testIsStrongETag() throws Exception {
+        assertTrue(Helpers.isStrongETag("\"abc\""));
+        assertFalse(Helpers.isStrongETag("W/\"abc\""));
+        assertFalse(Helpers.isStrongETag(null));
+    }
+
 }
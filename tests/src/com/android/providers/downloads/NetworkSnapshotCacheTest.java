@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.net.ConnectivityManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link NetworkSnapshotCache} reuse and invalidation.
+ */
+@SmallTest
+public class NetworkSnapshotCacheTest extends AndroidTestCase {
+
+    private FakeSystemFacade mSystemFacade;
+    private NetworkSnapshotCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSystemFacade = new FakeSystemFacade();
+        mSystemFacade.setUp();
+        mCache = new NetworkSnapshotCache(mSystemFacade);
+    }
+
+    public void testReusedUntilInvalidated() throws Exception {
+        final NetworkSnapshotCache.Snapshot first = mCache.get(1000);
+        assertEquals(ConnectivityManager.TYPE_WIFI, first.mInfo.getType());
+        assertFalse(first.mRoaming);
+
+        mSystemFacade.mActiveNetworkType = ConnectivityManager.TYPE_MOBILE;
+        mSystemFacade.mIsRoaming = true;
+        assertSame(first, mCache.get(1000));
+
+        mCache.invalidate();
+        final NetworkSnapshotCache.Snapshot second = mCache.get(1000);
+        assertEquals(ConnectivityManager.TYPE_MOBILE, second.mInfo.getType());
+        assertTrue(second.mRoaming);
+    }
+
+    public void testSeparatePerUid() throws Exception {
+        mSystemFacade.mMaxBytesOverMobile = 1024L;
+        final NetworkSnapshotCache.Snapshot first = mCache.get(1000);
+        final NetworkSnapshotCache.Snapshot second = mCache.get(1001);
+        assertNotSame(first, second);
+        assertEquals(Long.valueOf(1024), second.mMaxBytesOverMobile);
+        assertSame(second, mCache.get(1001));
+    }
+
+    public void testNoNetwork() throws Exception {
+        mSystemFacade.mActiveNetworkType = null;
+        assertNull(mCache.get(1000).mInfo);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.Downloads;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.collect.Maps;
+
+import java.util.HashMap;
+
+/**
+ * Tests for {@link ProgressOverlayCursor} reporting unwritten progress.
+ */
+@SmallTest
+public class ProgressOverlayCursorTest extends AndroidTestCase {
+
+    public void testOverlaysOnlyPendingRows() throws Exception {
+        final MatrixCursor rows = new MatrixCursor(new String[] {
+                Downloads.Impl._ID, Downloads.Impl.COLUMN_STATUS,
+                Downloads.Impl.COLUMN_CURRENT_BYTES });
+        rows.addRow(new Object[] { 1, Downloads.Impl.STATUS_RUNNING, 100 });
+        rows.addRow(new Object[] { 2, Downloads.Impl.STATUS_RUNNING, 200 });
+
+        final ContentValues pending = new ContentValues();
+        pending.put(Downloads.Impl.COLUMN_CURRENT_BYTES, 150L);
+        final HashMap<Long, ContentValues> pendingById = Maps.newHashMap();
+        pendingById.put(1L, pending);
+
+        final Cursor cursor = new ProgressOverlayCursor(rows, pendingById);
+        assertTrue(cursor.moveToNext());
+        assertEquals(150, cursor.getLong(2));
+        assertEquals("150", cursor.getString(2));
+        assertEquals(Downloads.Impl.STATUS_RUNNING, cursor.getInt(1));
+
+        assertTrue(cursor.moveToNext());
+        assertEquals(200, cursor.getLong(2));
+    }
+}
@@ -22,6 +22,7 @@ import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.text.format.DateUtils.SECOND_IN_MILLIS;
 import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
 import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_PARTIAL;
 import static java.net.HttpURLConnection.HTTP_PRECON_FAILED;
@@ -53,6 +54,7 @@ import com.google.mockwebserver.MockResponse;
 import com.google.mockwebserver.RecordedRequest;
 import com.google.mockwebserver.SocketPolicy;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -60,6 +62,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
 
 @LargeTest
 public class PublicApiFunctionalTest extends AbstractPublicApiTest {
@@ -377,6 +380,38 @@ public class PublicApiFunctionalTest extends AbstractPublicApiTest {
         assertTrue(headers.contains("Header2: value2"));
     }
 
+    public void testCompressedTransfer() throws Exception {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(FILE_CONTENT.getBytes());
+        out.close();
+
+        enqueueResponse(buildResponse(HTTP_OK, compressed.toByteArray())
+                .setHeader("Content-Encoding", "gzip")
+                .setHeader("Etag", ETAG));
+        final Download download = enqueueRequest(
+                getRequest().addRequestHeader("Accept-Encoding", "gzip"));
+        download.runUntilStatus(DownloadManager.STATUS_SUCCESSFUL);
+
+        assertEquals("gzip", getHeaderValue(takeRequest(), "Accept-Encoding"));
+        checkCompleteDownload(download);
+    }
+
+    public void testConditionalRevalidation() throws Exception {
+        enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT).setHeader("Etag", ETAG));
+        final Download first = enqueueRequest(getRequest());
+        first.runUntilStatus(DownloadManager.STATUS_SUCCESSFUL);
+        assertNull(getHeaderValue(takeRequest(), "If-None-Match"));
+
+        // unchanged on server, so second download is served from cache
+        enqueueResponse(buildEmptyResponse(HTTP_NOT_MODIFIED));
+        final Download second = enqueueRequest(getRequest());
+        second.runUntilStatus(DownloadManager.STATUS_SUCCESSFUL);
+
+        assertEquals(ETAG, getHeaderValue(takeRequest(), "If-None-Match"));
+        assertEquals(FILE_CONTENT, second.getContents());
+    }
+
     public void testDelete() throws Exception {
         Download download = enqueueRequest(getRequest().addRequestHeader("header", "value"));
         mManager.remove(download.mId);
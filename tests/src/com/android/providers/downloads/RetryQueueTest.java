@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.collect.Maps;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Tests for {@link RetryQueue} ordering and updates.
+ */
+@SmallTest
+public class RetryQueueTest extends AndroidTestCase {
+
+    public void testOrdering() throws Exception {
+        final RetryQueue queue = new RetryQueue();
+        assertEquals(Long.MAX_VALUE, queue.peekDeadline());
+
+        queue.schedule(1, 300);
+        queue.schedule(2, 100);
+        queue.schedule(3, 200);
+        assertEquals(100, queue.peekDeadline());
+
+        assertEquals(2, queue.poll());
+        assertEquals(3, queue.poll());
+        assertEquals(1, queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    public void testReschedule() throws Exception {
+        final RetryQueue queue = new RetryQueue();
+        queue.schedule(1, 100);
+        queue.schedule(2, 200);
+
+        queue.schedule(1, 300);
+        assertEquals(2, queue.size());
+        assertEquals(300, queue.getDeadline(1));
+        assertEquals(2, queue.poll());
+
+        queue.schedule(3, 400);
+        queue.schedule(3, 50);
+        assertEquals(3, queue.poll());
+        assertEquals(1, queue.poll());
+    }
+
+    public void testRemove() throws Exception {
+        final RetryQueue queue = new RetryQueue();
+        queue.schedule(1, 100);
+        queue.schedule(2, 200);
+        queue.schedule(3, 300);
+
+        assertTrue(queue.remove(1));
+        assertFalse(queue.remove(1));
+        assertFalse(queue.contains(1));
+        assertEquals(Long.MAX_VALUE, queue.getDeadline(1));
+        assertEquals(200, queue.peekDeadline());
+    }
+
+    public void testRandomOperations() throws Exception {
+        final RetryQueue queue = new RetryQueue();
+        final HashMap<Long, Long> expected = Maps.newHashMap();
+        final Random random = new Random(42);
+
+        for (int i = 0; i < 5000; i++) {
+            final long id = random.nextInt(200);
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.remove(id) != null, queue.remove(id));
+            } else {
+                final long deadline = random.nextInt(10000);
+                expected.put(id, deadline);
+                queue.schedule(id, deadline);
+            }
+            assertEquals(expected.size(), queue.size());
+        }
+
+        long last = Long.MIN_VALUE;
+        while (queue.size() > 0) {
+            final long deadline = queue.peekDeadline();
+            final long id = queue.poll();
+            assertEquals((long) expected.remove(id), deadline);
+            assertTrue(deadline >= last);
+            last = deadline;
+        }
+        assertTrue(expected.isEmpty());
+    }
+}
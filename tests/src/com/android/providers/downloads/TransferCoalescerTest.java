@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link TransferCoalescer} parking and releasing followers.
+ */
+@SmallTest
+public class TransferCoalescerTest extends AndroidTestCase {
+    private static final String URL = "http://example.com/file";
+
+    private int mFinished;
+
+    private final TransferCoalescer mCoalescer = new TransferCoalescer(new Runnable() {
+        @Override
+        public void run() {
+            mFinished++;
+        }
+    });
+
+    public void testFollowerParkedUntilLeaderFinishes() throws Exception {
+        final TransferCoalescer.Transfer leader = mCoalescer.join(1, URL, "etag", 100);
+        assertTrue(leader.isLeader(1));
+        assertFalse(mCoalescer.isFollowing(1));
+
+        assertSame(leader, mCoalescer.join(2, URL, "etag", 100));
+        assertTrue(mCoalescer.isFollowing(2));
+        assertNull(mCoalescer.collect(2));
+
+        mCoalescer.finish(leader, "/cache/file");
+        assertEquals(1, mFinished);
+        assertFalse(mCoalescer.isFollowing(2));
+
+        final TransferCoalescer.Transfer collected = mCoalescer.collect(2);
+        assertEquals("/cache/file", collected.getFilename());
+        assertNull(mCoalescer.collect(2));
+    }
+
+    public void testFailedLeaderReleasesFollowers() throws Exception {
+        final TransferCoalescer.Transfer leader = mCoalescer.join(1, URL, "etag", 100);
+        mCoalescer.join(2, URL, "etag", 100);
+        mCoalescer.finish(leader, null);
+
+        assertNull(mCoalescer.collect(2).getFilename());
+
+        // next identical response starts a fresh transfer
+        assertTrue(mCoalescer.join(2, URL, "etag", 100).isLeader(2));
+    }
+
+    public void testDifferentResponsesNotShared() throws Exception {
+        mCoalescer.join(1, URL, "etag", 100);
+        assertTrue(mCoalescer.join(2, URL, "other", 100).isLeader(2));
+        assertTrue(mCoalescer.join(3, URL, "etag", 200).isLeader(3));
+        assertEquals(0, mFinished);
+    }
+
+    public void testFollowerNamedFromLeaderHeaders() throws Exception {
+        final TransferCoalescer.Transfer leader = mCoalescer.join(1, URL, "etag", 100);
+        leader.setResponseHeaders("attachment; filename=\"file.bin\"", null);
+        mCoalescer.join(2, URL, "etag", 100);
+        mCoalescer.finish(leader, "/cache/file.bin");
+
+        final TransferCoalescer.Transfer collected = mCoalescer.collect(2);
+        assertEquals("attachment; filename=\"file.bin\"", collected.getContentDisposition());
+        assertEquals(100, collected.getLength());
+    }
+
+    public void testWeakETagNotShared() throws Exception {
+        mCoalescer.join(1, URL, "W/etag", 100);
+        assertTrue(mCoalescer.join(2, URL, "W/etag", 100).isLeader(2));
+        assertFalse(mCoalescer.isFollowing(2));
+    }
+}
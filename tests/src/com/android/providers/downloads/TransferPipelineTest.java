@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static android.provider.Downloads.Impl.STATUS_FILE_ERROR;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for {@link TransferPipeline} writes multiplexed over per-volume writers.
+ */
+@MediumTest
+public class TransferPipelineTest extends AndroidTestCase {
+
+    private static final int PIPELINES = 64;
+    private static final int CHUNKS = 32;
+
+    private static final File VOLUME_A = new File("/test/volume_a");
+    private static final File VOLUME_B = new File("/test/volume_b");
+
+    /**
+     * Sink that checks data arrives in order, remembering which threads wrote.
+     */
+    private static class CheckingSink implements TransferPipeline.Sink {
+        private final Set<String> mThreads;
+        private long mExpected;
+
+        public CheckingSink(Set<String> threads) {
+            mThreads = threads;
+        }
+
+        @Override
+        public void write(ByteBuffer data, long position) throws StopRequestException {
+            mThreads.add(Thread.currentThread().getName());
+            if (position != mExpected) {
+                throw new StopRequestException(STATUS_FILE_ERROR, "out of order at " + position);
+            }
+            while (data.hasRemaining()) {
+                if (data.get() != (byte) mExpected++) {
+                    throw new StopRequestException(STATUS_FILE_ERROR, "corrupt at " + mExpected);
+                }
+            }
+        }
+    }
+
+    public void testManyConcurrentTransfers() throws Exception {
+        final Set<String> threads = Collections.synchronizedSet(Sets.<String>newHashSet());
+        final Thread[] readers = new Thread[PIPELINES];
+        final Throwable[] failures = new Throwable[PIPELINES];
+
+        for (int i = 0; i < PIPELINES; i++) {
+            final int index = i;
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transfer(new CheckingSink(threads),
+                                (index % 2 == 0) ? VOLUME_A : VOLUME_B);
+                    } catch (Throwable t) {
+                        failures[index] = t;
+                    }
+                }
+            });
+            readers[i].start();
+        }
+
+        for (int i = 0; i < PIPELINES; i++) {
+            readers[i].join();
+            if (failures[i] != null) {
+                throw new AssertionError(failures[i]);
+            }
+        }
+
+        // one writer for each volume, no matter how many transfers
+        assertEquals("Unexpected writers " + threads, 2, threads.size());
+    }
+
+    public void testSlowVolumeDoesNotBlockOthers() throws Exception {
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final TransferPipeline slow = new TransferPipeline(new TransferPipeline.Sink() {
+            @Override
+            public void write(ByteBuffer data, long position) {
+                stalled.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, VOLUME_A, 0, 2, 16);
+
+        try {
+            final ByteBuffer data = slow.acquire();
+            data.put((byte) 1).flip();
+            slow.submit(data);
+            stalled.await();
+
+            // transfers to another volume keep moving while the first is stuck
+            transfer(new CheckingSink(Collections.synchronizedSet(Sets.<String>newHashSet())),
+                    VOLUME_B);
+        } finally {
+            release.countDown();
+            slow.close();
+        }
+    }
+
+    public void testWriterFailure() throws Exception {
+        final TransferPipeline pipeline = new TransferPipeline(new TransferPipeline.Sink() {
+            @Override
+            public void write(ByteBuffer data, long position) throws StopRequestException {
+                throw new StopRequestException(STATUS_FILE_ERROR, "disk full");
+            }
+        }, 0, 2, 16);
+
+        final ByteBuffer data = pipeline.acquire();
+        data.put((byte) 1).flip();
+        pipeline.submit(data);
+
+        try {
+            pipeline.finish();
+            fail("Expected writer failure");
+        } catch (StopRequestException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        pipeline.close();
+    }
+
+    public void testBuffersGrowOnDemand() throws Exception {
+        final TransferPipeline pipeline = new TransferPipeline(new CheckingSink(
+                Collections.synchronizedSet(Sets.<String>newHashSet())), VOLUME_A, 0, 2, 16);
+        try {
+            assertEquals(16, pipeline.acquire(8).capacity());
+            assertEquals(64, pipeline.acquire(64).capacity());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    private static void transfer(TransferPipeline.Sink sink, File volume)
+            throws StopRequestException {
+        final TransferPipeline pipeline = new TransferPipeline(sink, volume, 0, 4, 128);
+        long position = 0;
+        try {
+            for (int i = 0; i < CHUNKS; i++) {
+                final ByteBuffer data = pipeline.acquire();
+                while (data.hasRemaining()) {
+                    data.put((byte) position++);
+                }
+                data.flip();
+                pipeline.submit(data);
+            }
+            pipeline.finish();
+            assertEquals(position, pipeline.getCommitted());
+        } finally {
+            pipeline.close();
+        }
+    }
+}